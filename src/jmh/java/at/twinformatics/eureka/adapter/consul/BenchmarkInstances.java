@@ -0,0 +1,74 @@
+/**
+ * The MIT License
+ * Copyright © 2018 Twinformatics GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package at.twinformatics.eureka.adapter.consul;
+
+import com.netflix.appinfo.InstanceInfo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Creates instances as registered by Eureka clients for the benchmarks
+ */
+public final class BenchmarkInstances {
+
+    public static final String APP_NAME = "MS1";
+    public static final String NODE_META_PREFIX = "nodeMeta_";
+
+    private BenchmarkInstances() {
+    }
+
+    public static List<InstanceInfo> instances(int count, int metadataEntries) {
+        List<InstanceInfo> instances = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            instances.add(instance(i, metadataEntries));
+        }
+        return instances;
+    }
+
+    public static InstanceInfo instance(int i, int metadataEntries) {
+        return InstanceInfo.Builder.newBuilder()
+                .setAppName(APP_NAME)
+                .setInstanceId("ms1-host-" + i + ":" + APP_NAME + ":8080")
+                .setHostName("ms1-host-" + i + ".example.com")
+                .setIPAddr("10.0." + (i / 256) + "." + (i % 256))
+                .setPort(8080)
+                .setStatus(InstanceInfo.InstanceStatus.UP)
+                .setMetadata(metadata(metadataEntries))
+                .build();
+    }
+
+    /**
+     * Metadata with a third of the entries carrying the node meta prefix
+     */
+    public static Map<String, String> metadata(int entries) {
+        Map<String, String> metadata = new HashMap<>();
+        for (int i = 0; i < entries; i++) {
+            String key = i % 3 == 0 ? NODE_META_PREFIX + "key" + i : "key" + i;
+            metadata.put(key, "value" + i);
+        }
+        return metadata;
+    }
+}
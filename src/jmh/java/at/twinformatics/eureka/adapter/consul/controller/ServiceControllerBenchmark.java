@@ -0,0 +1,115 @@
+/**
+ * The MIT License
+ * Copyright © 2018 Twinformatics GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package at.twinformatics.eureka.adapter.consul.controller;
+
+import at.twinformatics.eureka.adapter.consul.BenchmarkInstances;
+import at.twinformatics.eureka.adapter.consul.mapper.InstanceInfoMapper;
+import at.twinformatics.eureka.adapter.consul.mapper.ServiceMetadataMapper;
+import at.twinformatics.eureka.adapter.consul.service.BlockingQueryMetrics;
+import at.twinformatics.eureka.adapter.consul.service.BlockingQueryRateLimiter;
+import at.twinformatics.eureka.adapter.consul.service.RegistrationService;
+import at.twinformatics.eureka.adapter.consul.service.ServiceChangeDetector;
+import at.twinformatics.eureka.adapter.consul.service.ServiceInstanceIndex;
+import at.twinformatics.eureka.adapter.consul.service.ServiceSnapshotCache;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.netflix.appinfo.InstanceInfo;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a request of a client that is behind the change index of a service, which returns at once with
+ * the cached response of the service. Run with -prof gc to see the bytes allocated per request.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ServiceControllerBenchmark {
+
+    private static final String APP = BenchmarkInstances.APP_NAME;
+    private static final String WAIT = "30s";
+    private static final Long INDEX = 1000L;
+
+    @Param({"false", "true"})
+    boolean gzip;
+
+    private ServiceChangeDetector serviceChangeDetector;
+    private ServiceController serviceController;
+    private MockHttpServletRequest request;
+    private String acceptEncoding;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        List<InstanceInfo> instances = BenchmarkInstances.instances(10, 30);
+        serviceChangeDetector = new ServiceChangeDetector();
+        serviceChangeDetector.publish(APP, 2);
+        RegistrationService registrationService = new RegistrationService(null, serviceChangeDetector) {
+            @Override
+            public List<InstanceInfo> getInstances(String appName) {
+                return instances;
+            }
+        };
+        InstanceInfoMapper instanceInfoMapper = new InstanceInfoMapper(new ServiceMetadataMapper());
+        serviceController = new ServiceController(registrationService, instanceInfoMapper, new ServiceSnapshotCache(),
+                new ServiceInstanceIndex(registrationService, instanceInfoMapper), new ObjectMapper(),
+                new BlockingQueryMetrics(new SimpleMeterRegistry()), new BlockingQueryRateLimiter(serviceChangeDetector));
+        serviceController.setCompressResponses(true);
+        request = new MockHttpServletRequest();
+        acceptEncoding = gzip ? "gzip, deflate" : null;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        serviceChangeDetector.shutdown();
+    }
+
+    @Benchmark
+    public Object getService() {
+        return serviceController.getService(APP, WAIT, INDEX, null, null, null, acceptEncoding, request)
+                .getResult();
+    }
+
+    @Benchmark
+    public Object getServiceHealth() {
+        return serviceController.getServiceHealth(APP, WAIT, INDEX, null, null, null, null, acceptEncoding, request)
+                .getResult();
+    }
+}
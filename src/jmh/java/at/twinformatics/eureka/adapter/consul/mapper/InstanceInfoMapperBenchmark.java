@@ -0,0 +1,92 @@
+/**
+ * The MIT License
+ * Copyright © 2018 Twinformatics GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package at.twinformatics.eureka.adapter.consul.mapper;
+
+import at.twinformatics.eureka.adapter.consul.BenchmarkInstances;
+import at.twinformatics.eureka.adapter.consul.model.Service;
+import at.twinformatics.eureka.adapter.consul.model.ServiceHealth;
+import com.netflix.appinfo.InstanceInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures mapping a single instance to the catalog and health models, both for an unchanged instance
+ * (memoized) and for an instance that eureka replaced since the last mapping
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class InstanceInfoMapperBenchmark {
+
+    @Param({"false", "true"})
+    boolean useNodeMeta;
+
+    private InstanceInfo instanceInfo;
+    // two registrations of the same instance, alternately mapped so that each mapping misses the memo
+    private InstanceInfo[] registrations;
+    private int registration;
+    private InstanceInfoMapper instanceInfoMapper;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        instanceInfo = BenchmarkInstances.instance(0, 30);
+        registrations = new InstanceInfo[]{BenchmarkInstances.instance(1, 30), BenchmarkInstances.instance(1, 30)};
+        instanceInfoMapper = new InstanceInfoMapper(useNodeMeta
+                ? new NodeMetadataMapper(BenchmarkInstances.NODE_META_PREFIX) : new ServiceMetadataMapper());
+    }
+
+    @Benchmark
+    public Service map() {
+        return instanceInfoMapper.map(instanceInfo);
+    }
+
+    @Benchmark
+    public ServiceHealth mapToHealth() {
+        return instanceInfoMapper.mapToHealth(instanceInfo);
+    }
+
+    @Benchmark
+    public Service mapReplaced() {
+        return instanceInfoMapper.map(registrations[registration++ & 1]);
+    }
+
+    @Benchmark
+    public ServiceHealth mapToHealthReplaced() {
+        return instanceInfoMapper.mapToHealth(registrations[registration++ & 1]);
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * The MIT License
+ * Copyright © 2018 Twinformatics GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package at.twinformatics.eureka.adapter.consul.mapper;
+
+import at.twinformatics.eureka.adapter.consul.BenchmarkInstances;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the extraction of node and service metadata of both {@link MetadataMapper} implementations
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MetadataMapperBenchmark {
+
+    @Param({"5", "30"})
+    int metadataEntries;
+
+    private Map<String, String> metadata;
+    private MetadataMapper serviceMetadataMapper;
+    private MetadataMapper nodeMetadataMapper;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        metadata = BenchmarkInstances.metadata(metadataEntries);
+        serviceMetadataMapper = new ServiceMetadataMapper();
+        nodeMetadataMapper = new NodeMetadataMapper(BenchmarkInstances.NODE_META_PREFIX);
+    }
+
+    @Benchmark
+    public Map<String, String> serviceMetadataMapper_extractNodeMetadata() {
+        return serviceMetadataMapper.extractNodeMetadata(metadata);
+    }
+
+    @Benchmark
+    public Map<String, String> serviceMetadataMapper_extractServiceMetadata() {
+        return serviceMetadataMapper.extractServiceMetadata(metadata);
+    }
+
+    @Benchmark
+    public Map<String, String> nodeMetadataMapper_extractNodeMetadata() {
+        return nodeMetadataMapper.extractNodeMetadata(metadata);
+    }
+
+    @Benchmark
+    public Map<String, String> nodeMetadataMapper_extractServiceMetadata() {
+        return nodeMetadataMapper.extractServiceMetadata(metadata);
+    }
+
+    @Benchmark
+    public PartitionedMetadata nodeMetadataMapper_partitionMetadata() {
+        return nodeMetadataMapper.partitionMetadata(metadata);
+    }
+}
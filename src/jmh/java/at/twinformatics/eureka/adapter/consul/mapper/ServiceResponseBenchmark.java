@@ -0,0 +1,98 @@
+/**
+ * The MIT License
+ * Copyright © 2018 Twinformatics GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package at.twinformatics.eureka.adapter.consul.mapper;
+
+import at.twinformatics.eureka.adapter.consul.BenchmarkInstances;
+import at.twinformatics.eureka.adapter.consul.model.ServiceHealth;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.netflix.appinfo.InstanceInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Measures building the complete JSON response of a service depending on its number of instances,
+ * both by serializing the mapped list and by concatenating the encoded instances of {@link InstanceInfoMapper}
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ServiceResponseBenchmark {
+
+    @Param({"10", "100", "1000"})
+    int instances;
+
+    @Param({"false", "true"})
+    boolean useNodeMeta;
+
+    private List<InstanceInfo> instanceInfos;
+    private InstanceInfoMapper instanceInfoMapper;
+    private ObjectMapper objectMapper;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        instanceInfos = BenchmarkInstances.instances(instances, 30);
+        instanceInfoMapper = new InstanceInfoMapper(useNodeMeta
+                ? new NodeMetadataMapper(BenchmarkInstances.NODE_META_PREFIX) : new ServiceMetadataMapper());
+        objectMapper = new ObjectMapper();
+    }
+
+    @Benchmark
+    public byte[] serializeServices() throws JsonProcessingException {
+        return objectMapper.writeValueAsBytes(instanceInfos.stream().map(instanceInfoMapper::map).collect(toList()));
+    }
+
+    @Benchmark
+    public byte[] serializeServiceHealth() throws JsonProcessingException {
+        List<ServiceHealth> serviceHealth = instanceInfos.stream().map(instanceInfoMapper::mapToHealth).collect(toList());
+        return objectMapper.writeValueAsBytes(serviceHealth);
+    }
+
+    @Benchmark
+    public byte[] encodeServices() {
+        return instanceInfoMapper.encodeServices(instanceInfos);
+    }
+
+    @Benchmark
+    public byte[] encodeServiceHealth() {
+        return instanceInfoMapper.encodeServiceHealth(instanceInfos);
+    }
+}
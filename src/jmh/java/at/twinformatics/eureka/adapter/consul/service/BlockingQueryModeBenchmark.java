@@ -0,0 +1,86 @@
+/**
+ * The MIT License
+ * Copyright © 2018 Twinformatics GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package at.twinformatics.eureka.adapter.consul.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a blocking query that waits for a change and is woken up by it, either registered as a callback
+ * or parked on a virtual thread. Run with -prof gc to compare the allocations per query.
+ * The virtual thread mode requires a Java 21 runtime, e.g. -Djmh.java=/path/to/jdk-21/bin/java
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BlockingQueryModeBenchmark {
+
+    private static final String APP = "ms0";
+    private static final long WAIT_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    @Param({"false", "true"})
+    boolean virtualThreads;
+
+    private ServiceChangeDetector serviceChangeDetector;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        serviceChangeDetector = new ServiceChangeDetector();
+        serviceChangeDetector.setVirtualThreads(virtualThreads);
+        serviceChangeDetector.publish(APP, 2);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        serviceChangeDetector.shutdown();
+    }
+
+    @Benchmark
+    public Long waitForChange() {
+        long index = serviceChangeDetector.getLastEmittedOfApp(APP);
+        CompletableFuture<Long> query = serviceChangeDetector.getIndexOfApp(APP, index, WAIT_MILLIS);
+        // a virtual thread first has to start and park, otherwise it would see the change without waiting
+        while (virtualThreads && serviceChangeDetector.getParkedThreads() == 0) {
+            Thread.yield();
+        }
+        serviceChangeDetector.publish(APP);
+        return query.join();
+    }
+}
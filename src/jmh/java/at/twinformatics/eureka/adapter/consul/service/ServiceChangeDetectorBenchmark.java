@@ -0,0 +1,111 @@
+/**
+ * The MIT License
+ * Copyright © 2018 Twinformatics GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package at.twinformatics.eureka.adapter.consul.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures reading the change indexes of the {@link ServiceChangeDetector} depending on the size of the registry
+ * and publishing a change depending on the number of waiting blocking queries
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServiceChangeDetectorBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Registry {
+
+        @Param({"10", "1000", "50000"})
+        int apps;
+
+        ServiceChangeDetector serviceChangeDetector;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            serviceChangeDetector = new ServiceChangeDetector();
+            for (int i = 0; i < apps; i++) {
+                serviceChangeDetector.publish("ms" + i, i + 2);
+            }
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Waiters {
+
+        @Param({"10", "1000", "10000"})
+        int waiters;
+
+        ServiceChangeDetector serviceChangeDetector;
+        List<CompletableFuture<Long>> queries;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            serviceChangeDetector = new ServiceChangeDetector();
+            queries = new ArrayList<>(waiters);
+            // one blocking query per app, like Prometheus does
+            for (int i = 0; i < waiters; i++) {
+                queries.add(serviceChangeDetector.getIndexOfApp("ms" + i, 1L, TimeUnit.HOURS.toMillis(1)));
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            queries.forEach(query -> query.cancel(false));
+        }
+    }
+
+    @Benchmark
+    public void publish(Waiters waiters) {
+        waiters.serviceChangeDetector.publish("ms0");
+    }
+
+    @Benchmark
+    public Long getLastEmitted(Registry registry) {
+        return registry.serviceChangeDetector.getLastEmitted();
+    }
+
+    @Benchmark
+    public Long getLastEmittedOfApp(Registry registry) {
+        return registry.serviceChangeDetector.getLastEmittedOfApp("ms0");
+    }
+}
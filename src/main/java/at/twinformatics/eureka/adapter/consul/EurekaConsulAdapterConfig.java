@@ -27,15 +27,22 @@ import at.twinformatics.eureka.adapter.consul.controller.ServiceController;
 import at.twinformatics.eureka.adapter.consul.mapper.MetadataMapper;
 import at.twinformatics.eureka.adapter.consul.mapper.ServiceMetadataMapper;
 import at.twinformatics.eureka.adapter.consul.mapper.NodeMetadataMapper;
+import at.twinformatics.eureka.adapter.consul.service.BlockingQueryMetrics;
+import at.twinformatics.eureka.adapter.consul.service.BlockingQueryRateLimiter;
 import at.twinformatics.eureka.adapter.consul.service.RegistrationEventInstanceRegistry;
 import at.twinformatics.eureka.adapter.consul.service.RegistrationService;
 import at.twinformatics.eureka.adapter.consul.service.ServiceChangeDetector;
+import at.twinformatics.eureka.adapter.consul.service.ServiceInstanceIndex;
+import at.twinformatics.eureka.adapter.consul.service.ServiceSnapshotCache;
 import at.twinformatics.eureka.adapter.consul.mapper.InstanceInfoMapper;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.netflix.discovery.EurekaClient;
 import com.netflix.discovery.EurekaClientConfig;
 import com.netflix.eureka.EurekaServerConfig;
 import com.netflix.eureka.registry.PeerAwareInstanceRegistry;
 import com.netflix.eureka.resources.ServerCodecs;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
 import org.springframework.cloud.netflix.eureka.server.InstanceRegistryProperties;
@@ -63,8 +70,14 @@ public class EurekaConsulAdapterConfig {
 
     @Bean
     @ConditionalOnMissingBean
-    public ServiceController serviceController(RegistrationService registrationService, MetadataMapper metadataMapper) {
-        return new ServiceController(registrationService, serviceMapper(metadataMapper));
+    public ServiceController serviceController(RegistrationService registrationService, MetadataMapper metadataMapper,
+                                               ObjectMapper objectMapper,
+                                               BlockingQueryMetrics blockingQueryMetrics,
+                                               BlockingQueryRateLimiter blockingQueryRateLimiter) {
+        InstanceInfoMapper instanceInfoMapper = serviceMapper(metadataMapper);
+        return new ServiceController(registrationService, instanceInfoMapper, serviceSnapshotCache(),
+                serviceInstanceIndex(registrationService, instanceInfoMapper), objectMapper, blockingQueryMetrics,
+                blockingQueryRateLimiter);
     }
 
     @Bean
@@ -100,7 +113,8 @@ public class EurekaConsulAdapterConfig {
     public RegistrationService registrationService(PeerAwareInstanceRegistry peerAwareInstanceRegistry) {
         Assert.isTrue(peerAwareInstanceRegistry instanceof RegistrationEventInstanceRegistry,
                 "Instance Registry must be of type" + RegistrationEventInstanceRegistry.class.getName());
-        return new RegistrationService(peerAwareInstanceRegistry, serviceChangeDetector());
+        return new RegistrationService((RegistrationEventInstanceRegistry) peerAwareInstanceRegistry,
+                serviceChangeDetector());
     }
 
     @Bean
@@ -108,4 +122,29 @@ public class EurekaConsulAdapterConfig {
     public ServiceChangeDetector serviceChangeDetector() {
         return new ServiceChangeDetector();
     }
+
+    @Bean
+    @ConditionalOnMissingBean
+    public BlockingQueryMetrics blockingQueryMetrics(ObjectProvider<MeterRegistry> meterRegistry) {
+        return new BlockingQueryMetrics(meterRegistry);
+    }
+
+    @Bean
+    @ConditionalOnMissingBean
+    public BlockingQueryRateLimiter blockingQueryRateLimiter() {
+        return new BlockingQueryRateLimiter(serviceChangeDetector());
+    }
+
+    @Bean
+    @ConditionalOnMissingBean
+    public ServiceSnapshotCache serviceSnapshotCache() {
+        return new ServiceSnapshotCache();
+    }
+
+    @Bean
+    @ConditionalOnMissingBean
+    public ServiceInstanceIndex serviceInstanceIndex(RegistrationService registrationService,
+                                                     InstanceInfoMapper instanceInfoMapper) {
+        return new ServiceInstanceIndex(registrationService, instanceInfoMapper);
+    }
 }
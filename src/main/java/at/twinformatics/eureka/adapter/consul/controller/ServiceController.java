@@ -23,31 +23,48 @@
 package at.twinformatics.eureka.adapter.consul.controller;
 
 import at.twinformatics.eureka.adapter.consul.mapper.InstanceInfoMapper;
+import at.twinformatics.eureka.adapter.consul.model.ChangeItem;
 import at.twinformatics.eureka.adapter.consul.model.Service;
-import at.twinformatics.eureka.adapter.consul.model.ServiceHealth;
+import at.twinformatics.eureka.adapter.consul.model.ServiceChanges;
+import at.twinformatics.eureka.adapter.consul.model.ServiceSnapshot;
+import at.twinformatics.eureka.adapter.consul.service.BlockingQueryMetrics;
+import at.twinformatics.eureka.adapter.consul.service.BlockingQueryRateLimiter;
+import at.twinformatics.eureka.adapter.consul.service.InstanceFilter;
 import at.twinformatics.eureka.adapter.consul.service.RegistrationService;
+import at.twinformatics.eureka.adapter.consul.service.ServiceInstanceIndex;
+import at.twinformatics.eureka.adapter.consul.service.ServiceSnapshotCache;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.netflix.appinfo.InstanceInfo;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.util.Assert;
-import org.springframework.util.LinkedMultiValueMap;
-import org.springframework.util.MultiValueMap;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
-import rx.Single;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.context.request.async.DeferredResult;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.QueryParam;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.TimeUnit;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import static java.util.stream.Collectors.toList;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 @Controller
 @RequiredArgsConstructor
@@ -56,55 +73,427 @@ public class ServiceController {
 
     private static final String CONSUL_IDX_HEADER = "X-Consul-Index";
 
+    private static final String VIEW_SERVICES = "services";
+    private static final String VIEW_CATALOG = "catalog";
+    private static final String VIEW_HEALTH = "health";
+    private static final String VIEW_HEALTH_PASSING = "health-passing";
+    private static final String VIEW_CHANGES = "changes";
+
+    private static final String ALL_SERVICES = "";
+
+    // rate limiter keys of the endpoints that are not about a single service, a service name never contains a
+    // slash, so a service named like an endpoint does not share its limit
+    private static final String LIMIT_KEY_SERVICES = "/" + VIEW_SERVICES;
+    private static final String LIMIT_KEY_CHANGES = "/" + VIEW_CHANGES;
+
+    private static final String GZIP = "gzip";
+
     private static final String QUERY_PARAM_WAIT = "wait";
     private static final String QUERY_PARAM_INDEX = "index";
+    private static final String QUERY_PARAM_FILTER = "filter";
+    private static final String QUERY_PARAM_TAG = "tag";
+    private static final String QUERY_PARAM_NODE_META = "node-meta";
+    private static final String QUERY_PARAM_PASSING = "passing";
+
+    // time for building the response after the wait time passed
+    private static final long ASYNC_TIMEOUT_MARGIN_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    // like Consul, longer wait times are cut to this maximum
+    private static final long MAX_WAIT_MILLIS = TimeUnit.MINUTES.toMillis(10);
 
-    private static final Pattern WAIT_PATTERN = Pattern.compile("(\\d*)(m|s|ms|h)");
-    private static final Random RANDOM = new Random();
+    // largest wait value that can take another digit without overflow
+    private static final long MAX_WAIT_VALUE = (Long.MAX_VALUE - 9) / 10;
 
     private final RegistrationService registrationService;
     private final InstanceInfoMapper instanceInfoMapper;
+    private final ServiceSnapshotCache serviceSnapshotCache;
+    private final ServiceInstanceIndex serviceInstanceIndex;
+    private final ObjectMapper objectMapper;
+    private final BlockingQueryMetrics blockingQueryMetrics;
+    private final BlockingQueryRateLimiter blockingQueryRateLimiter;
+
+    @Value("${eurekaConsulAdapter.compressResponses:false}")
+    private boolean compressResponses;
+
+    // identifies clients behind a proxy or load balancer for the rate limiter, e.g. X-Forwarded-For
+    @Value("${eurekaConsulAdapter.clientAddressHeader:}")
+    private String clientAddressHeader;
+
+    private WaitJitter waitJitter = WaitJitter.UNIFORM;
 
     @GetMapping(value = "/v1/catalog/services", produces = MediaType.APPLICATION_JSON_VALUE)
-    public Single<ResponseEntity<Map<String, String[]>>> getServiceNames(@QueryParam(QUERY_PARAM_WAIT) String wait,
-                                                                         @QueryParam(QUERY_PARAM_INDEX) Long index) {
-        return registrationService.getServiceNames(getWaitMillis(wait), index)
-                .map(item -> createResponseEntity(item.getItem(), item.getChangeIndex()));
+    public DeferredResult<ResponseEntity<byte[]>> getServiceNames(@QueryParam(QUERY_PARAM_WAIT) String wait,
+                                                          @QueryParam(QUERY_PARAM_INDEX) Long index,
+                                                          @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING,
+                                                                  required = false) String acceptEncoding,
+                                                          HttpServletRequest request) {
+        boolean gzip = acceptsGzip(acceptEncoding);
+        long waitMillis = getWaitMillis(wait);
+        return toDeferredResult(waitMillis, blockingQueryRateLimiter.limit(getClientAddress(request),
+                LIMIT_KEY_SERVICES, index, waitMillis, blockingQueryMetrics.recordWait(VIEW_SERVICES, index,
+                        registrationService.getServiceNames(waitMillis, index), ChangeItem::getChangeIndex)),
+                item -> createSnapshotResponseEntity(VIEW_SERVICES, ALL_SERVICES, item.getChangeIndex(),
+                        () -> encode(item.getItem()), gzip));
     }
 
     @GetMapping(value = "/v1/catalog/service/{appName}", produces = MediaType.APPLICATION_JSON_VALUE)
-    public Single<ResponseEntity<List<Service>>> getService(@PathVariable("appName") String appName,
-                                                            @QueryParam(QUERY_PARAM_WAIT) String wait,
-                                                            @QueryParam(QUERY_PARAM_INDEX) Long index) {
+    public DeferredResult<ResponseEntity<byte[]>> getService(@PathVariable("appName") String appName,
+                                                     @QueryParam(QUERY_PARAM_WAIT) String wait,
+                                                     @QueryParam(QUERY_PARAM_INDEX) Long index,
+                                                     @QueryParam(QUERY_PARAM_FILTER) String filter,
+                                                     @RequestParam(value = QUERY_PARAM_TAG,
+                                                             required = false) List<String> tags,
+                                                     @RequestParam(value = QUERY_PARAM_NODE_META,
+                                                             required = false) List<String> nodeMeta,
+                                                     @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING,
+                                                             required = false) String acceptEncoding,
+                                                     HttpServletRequest request) {
         Assert.isTrue(appName != null, "service name can not be null");
-        return registrationService.getService(appName, getWaitMillis(wait), index)
-                .map(item -> {
-                    List<Service> services = item.getItem().stream().map(instanceInfoMapper::map).collect(toList());
-                    return createResponseEntity(services, item.getChangeIndex());
-                });
+        InstanceFilter instanceFilter = serviceInstanceIndex.createFilter(filter, tags, nodeMeta, false);
+        boolean gzip = acceptsGzip(acceptEncoding);
+        long waitMillis = getWaitMillis(wait);
+        CompletableFuture<Long> query = blockingQueryRateLimiter.limit(getClientAddress(request), appName, index,
+                waitMillis, blockingQueryMetrics.recordWait(VIEW_CATALOG, index,
+                        registrationService.getServiceIndex(appName, waitMillis, index), Long::longValue));
+        if (isReturned(query)) {
+            // most requests of clients behind the index return at once, without capturing the request state
+            return toDeferredResult(waitMillis, createServiceResponseEntity(VIEW_CATALOG, appName, query.join(),
+                    instanceFilter, InstanceInfoMapper::encodeServices, gzip));
+        }
+        return toDeferredResult(waitMillis, query, changeIndex -> createServiceResponseEntity(VIEW_CATALOG, appName,
+                changeIndex, instanceFilter, InstanceInfoMapper::encodeServices, gzip));
     }
 
     @GetMapping(value = "/v1/health/service/{appName}", produces = MediaType.APPLICATION_JSON_VALUE)
-    public Single<ResponseEntity<List<ServiceHealth>>> getServiceHealth(@PathVariable("appName") String appName,
-                                                                        @QueryParam(QUERY_PARAM_WAIT) String wait,
-                                                                        @QueryParam(QUERY_PARAM_INDEX) Long index) {
+    public DeferredResult<ResponseEntity<byte[]>> getServiceHealth(@PathVariable("appName") String appName,
+                                                           @QueryParam(QUERY_PARAM_WAIT) String wait,
+                                                           @QueryParam(QUERY_PARAM_INDEX) Long index,
+                                                           @QueryParam(QUERY_PARAM_FILTER) String filter,
+                                                           @RequestParam(value = QUERY_PARAM_TAG,
+                                                                   required = false) List<String> tags,
+                                                           @RequestParam(value = QUERY_PARAM_NODE_META,
+                                                                   required = false) List<String> nodeMeta,
+                                                           @QueryParam(QUERY_PARAM_PASSING) String passing,
+                                                           @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING,
+                                                                   required = false) String acceptEncoding,
+                                                           HttpServletRequest request) {
         Assert.isTrue(appName != null, "service name can not be null");
-        return registrationService.getService(appName, getWaitMillis(wait), index)
-                .map(item -> {
-                    List<ServiceHealth> services = item.getItem().stream()
-                            .map(instanceInfoMapper::mapToHealth).collect(toList());
-                    return createResponseEntity(services, item.getChangeIndex());
-                });
+        InstanceFilter instanceFilter = serviceInstanceIndex.createFilter(filter, tags, nodeMeta,
+                isPassing(passing));
+        boolean gzip = acceptsGzip(acceptEncoding);
+        long waitMillis = getWaitMillis(wait);
+        CompletableFuture<Long> query = blockingQueryRateLimiter.limit(getClientAddress(request), appName, index,
+                waitMillis, blockingQueryMetrics.recordWait(VIEW_HEALTH, index,
+                        registrationService.getServiceIndex(appName, waitMillis, index), Long::longValue));
+        if (isReturned(query)) {
+            // most requests of clients behind the index return at once, without capturing the request state
+            return toDeferredResult(waitMillis, createServiceResponseEntity(VIEW_HEALTH, appName, query.join(),
+                    instanceFilter, InstanceInfoMapper::encodeServiceHealth, gzip));
+        }
+        return toDeferredResult(waitMillis, query, changeIndex -> createServiceResponseEntity(VIEW_HEALTH, appName,
+                changeIndex, instanceFilter, InstanceInfoMapper::encodeServiceHealth, gzip));
+    }
+
+    /**
+     * Returns the services changed since the index with their instances, so that clients mirroring the catalog
+     * resync with one request instead of one per service. Waits for a change like the other endpoints.
+     */
+    @GetMapping(value = "/v1/adapter/changes", produces = MediaType.APPLICATION_JSON_VALUE)
+    public DeferredResult<ResponseEntity<byte[]>> getServiceChanges(@QueryParam(QUERY_PARAM_WAIT) String wait,
+                                                            @QueryParam(QUERY_PARAM_INDEX) Long index,
+                                                            HttpServletRequest request) {
+        long waitMillis = getWaitMillis(wait);
+        return toDeferredResult(waitMillis, blockingQueryRateLimiter.limit(getClientAddress(request),
+                LIMIT_KEY_CHANGES, index, waitMillis, blockingQueryMetrics.recordWait(VIEW_CHANGES, index,
+                        registrationService.getCatalogIndex(waitMillis, index), Long::longValue)),
+                changeIndex -> createChangesResponseEntity(index));
+    }
+
+    /**
+     * Completes the request when the query returns. The async timeout of the request follows its wait time,
+     * so blocking queries do not depend on {@code spring.mvc.async.request-timeout}. A request that timed out
+     * or whose client went away stops waiting for changes.
+     */
+    private <T> DeferredResult<ResponseEntity<byte[]>> toDeferredResult(
+            long waitMillis, CompletableFuture<T> query, Function<T, ResponseEntity<byte[]>> createResponseEntity) {
+        DeferredResult<ResponseEntity<byte[]>> result = new DeferredResult<>(waitMillis + ASYNC_TIMEOUT_MARGIN_MILLIS);
+        if (isReturned(query)) {
+            result.setResult(createResponseEntity.apply(query.join()));
+            return result;
+        }
+        query.whenComplete((item, error) -> {
+            if (error != null) {
+                result.setErrorResult(error instanceof CompletionException ? error.getCause() : error);
+                return;
+            }
+            try {
+                result.setResult(createResponseEntity.apply(item));
+            } catch (RuntimeException e) {
+                result.setErrorResult(e);
+            }
+        });
+        result.onCompletion(() -> query.cancel(false));
+        return result;
+    }
+
+    private DeferredResult<ResponseEntity<byte[]>> toDeferredResult(long waitMillis,
+                                                                    ResponseEntity<byte[]> responseEntity) {
+        DeferredResult<ResponseEntity<byte[]>> result = new DeferredResult<>(waitMillis + ASYNC_TIMEOUT_MARGIN_MILLIS);
+        result.setResult(responseEntity);
+        return result;
+    }
+
+    private static boolean isReturned(CompletableFuture<?> query) {
+        return query.isDone() && !query.isCompletedExceptionally();
+    }
+
+    /**
+     * Unfiltered responses are shared by all clients of the service, filtered responses only contain
+     * the instances selected from the index and are built per request
+     */
+    private ResponseEntity<byte[]> createServiceResponseEntity(String view, String appName, long changeIndex,
+                                                               InstanceFilter instanceFilter,
+                                                               BiFunction<InstanceInfoMapper, List<InstanceInfo>,
+                                                                       byte[]> encoder,
+                                                               boolean gzip) {
+        if (instanceFilter.isEmpty()) {
+            ServiceSnapshot snapshot = serviceSnapshotCache.getSnapshot(view, appName, changeIndex);
+            if (snapshot == null) {
+                List<InstanceInfo> instances = registrationService.getInstances(appName);
+                if (instances.isEmpty()) {
+                    return createUncachedResponseEntity(view, appName, changeIndex, instances, encoder, gzip);
+                }
+                snapshot = createSnapshot(view, appName, changeIndex,
+                        () -> encoder.apply(instanceInfoMapper, instances));
+            }
+            return createResponseEntity(snapshot, gzip);
+        }
+        if (instanceFilter.isPassingOnly()) {
+            // only the health view filters on passing, its response is shared like the unfiltered one
+            ServiceSnapshot snapshot = serviceSnapshotCache.getSnapshot(VIEW_HEALTH_PASSING, appName, changeIndex);
+            if (snapshot == null) {
+                if (registrationService.getInstances(appName).isEmpty()) {
+                    return createUncachedResponseEntity(VIEW_HEALTH_PASSING, appName, changeIndex,
+                            Collections.emptyList(), encoder, gzip);
+                }
+                snapshot = createSnapshot(VIEW_HEALTH_PASSING, appName, changeIndex, () -> encoder.apply(
+                        instanceInfoMapper, serviceInstanceIndex.getInstances(appName, changeIndex, instanceFilter)));
+            }
+            return createResponseEntity(snapshot, gzip);
+        }
+        byte[] body = blockingQueryMetrics.recordResponseBuild(view, () -> encoder.apply(instanceInfoMapper,
+                serviceInstanceIndex.getInstances(appName, changeIndex, instanceFilter)));
+        return createResponseEntity(new ServiceSnapshot(changeIndex, body), gzip);
+    }
+
+    /**
+     * Services without instances are unknown or removed, their snapshots are not kept so that requests for
+     * arbitrary names do not fill the cache
+     */
+    private ResponseEntity<byte[]> createUncachedResponseEntity(String view, String appName, long changeIndex,
+                                                                List<InstanceInfo> instances,
+                                                                BiFunction<InstanceInfoMapper, List<InstanceInfo>,
+                                                                        byte[]> encoder,
+                                                                boolean gzip) {
+        serviceSnapshotCache.remove(appName);
+        byte[] body = blockingQueryMetrics.recordResponseBuild(view, () -> encoder.apply(instanceInfoMapper,
+                instances));
+        return createResponseEntity(new ServiceSnapshot(changeIndex, body), gzip);
+    }
+
+    private ResponseEntity<byte[]> createSnapshotResponseEntity(String view, String name, long changeIndex,
+                                                                Supplier<byte[]> body, boolean gzip) {
+        ServiceSnapshot snapshot = serviceSnapshotCache.getSnapshot(view, name, changeIndex);
+        if (snapshot == null) {
+            snapshot = createSnapshot(view, name, changeIndex, body);
+        }
+        return createResponseEntity(snapshot, gzip);
+    }
+
+    private ServiceSnapshot createSnapshot(String view, String name, long changeIndex, Supplier<byte[]> body) {
+        return serviceSnapshotCache.getSnapshot(view, name, changeIndex,
+                () -> blockingQueryMetrics.recordResponseBuild(view, body));
+    }
+
+    /**
+     * The response of a snapshot is built once per variant and shared by all requests for its change index,
+     * the headers of a response entity are read-only
+     */
+    private ResponseEntity<byte[]> createResponseEntity(ServiceSnapshot snapshot, boolean gzip) {
+        boolean gzipped = compressResponses && gzip;
+        ResponseEntity<byte[]> responseEntity = gzipped ? snapshot.getGzippedResponse() : snapshot.getResponse();
+        if (responseEntity == null) {
+            HttpHeaders headers = createHeaders(snapshot.getChangeIndex());
+            headers.add(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_UTF8_VALUE);
+            if (compressResponses) {
+                headers.add(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+            }
+            if (gzipped) {
+                headers.add(HttpHeaders.CONTENT_ENCODING, GZIP);
+                responseEntity = new ResponseEntity<>(snapshot.getGzippedBody(), headers, HttpStatus.OK);
+                snapshot.setGzippedResponse(responseEntity);
+            } else {
+                responseEntity = new ResponseEntity<>(snapshot.getBody(), headers, HttpStatus.OK);
+                snapshot.setResponse(responseEntity);
+            }
+        }
+        return responseEntity;
+    }
+
+    /**
+     * The index of the response is the one the changes are complete up to, which may be newer than the change
+     * that woke up the query. Changes after it are returned again by the next request, but none is missed.
+     */
+    private ResponseEntity<byte[]> createChangesResponseEntity(Long index) {
+        ChangeItem<Set<String>> changed = registrationService.getServicesChangedSince(index);
+        byte[] body = blockingQueryMetrics.recordResponseBuild(VIEW_CHANGES,
+                () -> encode(getServiceChanges(changed.getItem())));
+        return createResponseEntity(new ServiceSnapshot(changed.getChangeIndex(), body), false);
+    }
+
+    private ServiceChanges getServiceChanges(Set<String> changed) {
+        boolean full = changed == null;
+        Map<String, List<Service>> services = new TreeMap<>();
+        for (String appName : full ? registrationService.getAllServiceNames() : changed) {
+            List<InstanceInfo> instances = registrationService.getInstances(appName);
+            List<Service> mapped = new ArrayList<>(instances.size());
+            for (InstanceInfo instance : instances) {
+                mapped.add(instanceInfoMapper.map(instance));
+            }
+            services.put(appName, mapped);
+        }
+        return new ServiceChanges(full, services);
+    }
+
+    /**
+     * Consul accepts {@code ?passing} without a value, which is bound as an empty string
+     */
+    private boolean isPassing(String passing) {
+        return passing != null && !"false".equalsIgnoreCase(passing);
+    }
+
+    /**
+     * Parses the codings of an Accept-Encoding header like {@code gzip;q=0.8, *;q=0} without splitting it.
+     * An explicit gzip coding decides, otherwise a wildcard does. A quality of zero refuses the coding.
+     */
+    private static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        boolean wildcardAccepted = false;
+        int length = acceptEncoding.length();
+        for (int start = 0; start < length; ) {
+            int end = acceptEncoding.indexOf(',', start);
+            if (end < 0) {
+                end = length;
+            }
+            int parametersStart = acceptEncoding.indexOf(';', start);
+            if (parametersStart < 0 || parametersStart > end) {
+                parametersStart = end;
+            }
+            int codingStart = skipWhitespace(acceptEncoding, start, parametersStart);
+            int codingEnd = trimWhitespace(acceptEncoding, codingStart, parametersStart);
+            int codingLength = codingEnd - codingStart;
+            if (codingLength == GZIP.length()
+                    && acceptEncoding.regionMatches(true, codingStart, GZIP, 0, codingLength)) {
+                return !hasZeroQuality(acceptEncoding, parametersStart, end);
+            }
+            if (codingLength == 1 && acceptEncoding.charAt(codingStart) == '*') {
+                wildcardAccepted = !hasZeroQuality(acceptEncoding, parametersStart, end);
+            }
+            start = end + 1;
+        }
+        return wildcardAccepted;
+    }
+
+    /**
+     * Checks the parameters of a coding for {@code q=0}, {@code q=0.0} or the like
+     */
+    private static boolean hasZeroQuality(String acceptEncoding, int parametersStart, int end) {
+        for (int start = parametersStart; start < end; ) {
+            int parameterEnd = acceptEncoding.indexOf(';', start + 1);
+            if (parameterEnd < 0 || parameterEnd > end) {
+                parameterEnd = end;
+            }
+            int nameStart = skipWhitespace(acceptEncoding, start + 1, parameterEnd);
+            if (nameStart + 1 < parameterEnd && (acceptEncoding.charAt(nameStart) == 'q'
+                    || acceptEncoding.charAt(nameStart) == 'Q') && acceptEncoding.charAt(nameStart + 1) == '=') {
+                int valueEnd = trimWhitespace(acceptEncoding, nameStart + 2, parameterEnd);
+                boolean zero = valueEnd > nameStart + 2;
+                for (int i = nameStart + 2; i < valueEnd && zero; i++) {
+                    char c = acceptEncoding.charAt(i);
+                    zero = c == '0' || c == '.';
+                }
+                return zero;
+            }
+            start = parameterEnd;
+        }
+        return false;
     }
 
-    private MultiValueMap<String, String> createHeaders(long index) {
-        MultiValueMap<String, String> headers = new LinkedMultiValueMap<>();
-        headers.add(CONSUL_IDX_HEADER, "" + index);
+    private static int skipWhitespace(String value, int start, int end) {
+        while (start < end && Character.isWhitespace(value.charAt(start))) {
+            start++;
+        }
+        return start;
+    }
+
+    private static int trimWhitespace(String value, int start, int end) {
+        while (end > start && Character.isWhitespace(value.charAt(end - 1))) {
+            end--;
+        }
+        return end;
+    }
+
+    private byte[] encode(Object body) {
+        try {
+            return objectMapper.writeValueAsBytes(body);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Could not encode response body", e);
+        }
+    }
+
+    private HttpHeaders createHeaders(long index) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.add(CONSUL_IDX_HEADER, Long.toString(index));
         return headers;
     }
 
-    private <T> ResponseEntity<T> createResponseEntity(T body, long index) {
-        return new ResponseEntity<>(body, createHeaders(index), HttpStatus.OK);
+    /**
+     * Behind a proxy or load balancer, the remote address of all clients is the one of the proxy. The configured
+     * header then identifies the client by its first address. Only set it if the proxy overwrites the header.
+     */
+    private String getClientAddress(HttpServletRequest request) {
+        if (clientAddressHeader != null && !clientAddressHeader.isEmpty()) {
+            String forwarded = request.getHeader(clientAddressHeader);
+            if (forwarded != null) {
+                int end = forwarded.indexOf(',');
+                String client = (end < 0 ? forwarded : forwarded.substring(0, end)).trim();
+                if (!client.isEmpty()) {
+                    return client;
+                }
+            }
+        }
+        return request.getRemoteAddr();
+    }
+
+    public void setClientAddressHeader(String clientAddressHeader) {
+        this.clientAddressHeader = clientAddressHeader;
+    }
+
+    public void setCompressResponses(boolean compressResponses) {
+        this.compressResponses = compressResponses;
+        // the headers of cached responses depend on compression
+        serviceSnapshotCache.reset();
+    }
+
+    @Value("${eurekaConsulAdapter.waitJitter:uniform}")
+    public void setWaitJitter(String waitJitter) {
+        setWaitJitter(WaitJitter.of(waitJitter));
+    }
+
+    public void setWaitJitter(WaitJitter waitJitter) {
+        this.waitJitter = waitJitter;
     }
 
     /**
@@ -115,30 +504,47 @@ public class ServiceController {
         // default from consul docu
         long millis = TimeUnit.MINUTES.toMillis(5);
         if (wait != null) {
-            Matcher matcher = WAIT_PATTERN.matcher(wait);
-            if (matcher.matches()) {
-                Long value = Long.valueOf(matcher.group(1));
-                TimeUnit timeUnit = parseTimeUnit(matcher.group(2));
-                millis = timeUnit.toMillis(value);
-            } else {
+            millis = Math.min(parseWaitMillis(wait), MAX_WAIT_MILLIS);
+        }
+        return waitJitter.apply(millis);
+    }
+
+    /**
+     * Parses a duration like {@code 30s} or {@code 500ms} without regular expression and boxing
+     */
+    private static long parseWaitMillis(String wait) {
+        int length = wait.length();
+        int unitStart = 0;
+        long value = 0;
+        for (char c; unitStart < length && (c = wait.charAt(unitStart)) >= '0' && c <= '9'; unitStart++) {
+            if (value > MAX_WAIT_VALUE) {
                 throw new IllegalArgumentException("Invalid wait pattern");
             }
+            value = value * 10 + (c - '0');
+        }
+        if (unitStart == 0) {
+            throw new IllegalArgumentException("Invalid wait pattern");
         }
-        return millis + RANDOM.nextInt(((int) millis / 16) + 1);
+        return parseTimeUnit(wait, unitStart).toMillis(value);
     }
 
-    private TimeUnit parseTimeUnit(String unit) {
-        switch (unit) {
-            case "h":
-                return TimeUnit.HOURS;
-            case "m":
-                return TimeUnit.MINUTES;
-            case "s":
-                return TimeUnit.SECONDS;
-            case "ms":
-                return TimeUnit.MILLISECONDS;
-            default:
-                throw new IllegalArgumentException("No valid time unit");
+    private static TimeUnit parseTimeUnit(String wait, int unitStart) {
+        int unitLength = wait.length() - unitStart;
+        char unit = unitLength > 0 ? wait.charAt(unitStart) : 0;
+        if (unitLength == 1) {
+            switch (unit) {
+                case 'h':
+                    return TimeUnit.HOURS;
+                case 'm':
+                    return TimeUnit.MINUTES;
+                case 's':
+                    return TimeUnit.SECONDS;
+                default:
+                    break;
+            }
+        } else if (unitLength == 2 && unit == 'm' && wait.charAt(unitStart + 1) == 's') {
+            return TimeUnit.MILLISECONDS;
         }
+        throw new IllegalArgumentException("Invalid wait pattern");
     }
 }
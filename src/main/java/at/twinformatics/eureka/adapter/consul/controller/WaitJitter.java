@@ -0,0 +1,85 @@
+/**
+ * The MIT License
+ * Copyright © 2018 Twinformatics GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package at.twinformatics.eureka.adapter.consul.controller;
+
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Jitter added to the wait time of blocking queries, so that the queries of many clients do not time out at once.
+ * Random numbers come from {@link ThreadLocalRandom}, request threads do not contend on a shared seed.
+ */
+public enum WaitJitter {
+
+    /**
+     * Waits exactly the requested time
+     */
+    NONE {
+        @Override
+        public long apply(long waitMillis) {
+            return waitMillis;
+        }
+    },
+
+    /**
+     * Adds up to 1/16 of the requested time, like Consul does
+     */
+    UNIFORM {
+        @Override
+        public long apply(long waitMillis) {
+            if (waitMillis <= 0) {
+                return waitMillis;
+            }
+            long jitter = ThreadLocalRandom.current().nextLong(waitMillis / 16 + 1);
+            // saturates instead of overflowing for wait times near the maximum
+            return waitMillis > Long.MAX_VALUE - jitter ? Long.MAX_VALUE : waitMillis + jitter;
+        }
+    },
+
+    /**
+     * Waits a random time up to the requested time, which spreads the timeouts of a fleet of clients
+     * over the whole wait time
+     */
+    FULL_JITTER {
+        @Override
+        public long apply(long waitMillis) {
+            if (waitMillis <= 0) {
+                return waitMillis;
+            }
+            // the bound is exclusive, but the maximum can not take one more
+            return ThreadLocalRandom.current().nextLong(waitMillis == Long.MAX_VALUE ? waitMillis : waitMillis + 1);
+        }
+    };
+
+    /**
+     * Returns the wait time with jitter, wait times of zero or less are returned as they are
+     */
+    public abstract long apply(long waitMillis);
+
+    /**
+     * Accepts the names in any case and with dashes, e.g. {@code full-jitter}
+     */
+    public static WaitJitter of(String name) {
+        return valueOf(name.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+    }
+}
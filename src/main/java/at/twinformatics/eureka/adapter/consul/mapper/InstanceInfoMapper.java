@@ -22,70 +22,155 @@
  */
 package at.twinformatics.eureka.adapter.consul.mapper;
 
+import at.twinformatics.eureka.adapter.consul.model.IndexedInstance;
 import at.twinformatics.eureka.adapter.consul.model.Service;
 import at.twinformatics.eureka.adapter.consul.model.ServiceHealth;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.netflix.appinfo.InstanceInfo;
+import com.netflix.appinfo.InstanceInfo.InstanceStatus;
+import lombok.EqualsAndHashCode;
+import lombok.RequiredArgsConstructor;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
 
 
 import static com.netflix.appinfo.InstanceInfo.PortType.SECURE;
 
+/**
+ * Maps eureka instances to Consul's model. The mapped and encoded objects of an instance are reused until
+ * eureka replaces or touches the instance, so that a change of one instance does not remap the whole service.
+ */
 @Component
 public class InstanceInfoMapper {
 
     private static final List<String> NO_SERVICE_TAGS = new ArrayList<>();
 
+    // below this number of memoized instances, entries of instances that left the registry are not swept
+    private static final int MIN_SWEEP_THRESHOLD = 1024;
+
     @Value("${eurekaConsulAdapter.preferHostName:false}")
     private boolean preferHostName;
 
     private MetadataMapper metadataMapper;
 
+    private ObjectMapper objectMapper = new ObjectMapper();
+
+    private final ConcurrentMap<InstanceKey, MappedInstance> mappedInstances = new ConcurrentHashMap<>();
+    private volatile int sweepThreshold = MIN_SWEEP_THRESHOLD;
+
     @Autowired
     public InstanceInfoMapper(MetadataMapper metadataMapper) {
         this.metadataMapper = metadataMapper;
     }
 
     public Service map(InstanceInfo instanceInfo) {
-        String address = getAddress(instanceInfo);
-        return Service.builder()
-                      .address(address)
-                      .serviceAddress(address)
-                      .serviceName(instanceInfo.getAppName())
-                      .serviceID(instanceInfo.getId())
-                      .servicePort(getPort(instanceInfo))
-                      .node(instanceInfo.getAppName())
-                      .nodeMeta(metadataMapper.extractNodeMetadata(instanceInfo.getMetadata()))
-                      .serviceMeta(metadataMapper.extractServiceMetadata(instanceInfo.getMetadata()))
-                      .serviceTags(NO_SERVICE_TAGS)
-                      .build();
+        return map(instanceInfo, getMappedInstance(instanceInfo));
     }
 
     public ServiceHealth mapToHealth(InstanceInfo instanceInfo) {
-        String address = getAddress(instanceInfo);
+        return mapToHealth(instanceInfo, getMappedInstance(instanceInfo));
+    }
+
+    /**
+     * Encodes the instances as JSON array of the catalog model by concatenating the encoded instances,
+     * so that only instances that changed since the last response are encoded again
+     */
+    public byte[] encodeServices(List<InstanceInfo> instances) {
+        return encodeArray(instances, instanceInfo -> {
+            MappedInstance mapped = getMappedInstance(instanceInfo);
+            byte[] json = mapped.serviceJson;
+            if (json == null) {
+                json = encode(map(instanceInfo, mapped));
+                mapped.serviceJson = json;
+            }
+            return json;
+        });
+    }
+
+    /**
+     * Encodes the instances as JSON array of the health model, see {@link #encodeServices(List)}
+     */
+    public byte[] encodeServiceHealth(List<InstanceInfo> instances) {
+        return encodeArray(instances, instanceInfo -> {
+            MappedInstance mapped = getMappedInstance(instanceInfo);
+            byte[] json = mapped.serviceHealthJson;
+            if (json == null) {
+                json = encode(mapToHealth(instanceInfo, mapped));
+                mapped.serviceHealthJson = json;
+            }
+            return json;
+        });
+    }
+
+    public IndexedInstance index(InstanceInfo instanceInfo) {
+        MappedInstance mapped = getMappedInstance(instanceInfo);
+        return IndexedInstance.builder()
+                .instanceInfo(instanceInfo)
+                .address(mapped.address)
+                .port(mapped.port)
+                .nodeMeta(mapped.nodeMeta)
+                .serviceMeta(mapped.serviceMeta)
+                .build();
+    }
+
+    private Service map(InstanceInfo instanceInfo, MappedInstance mapped) {
+        Service service = mapped.service;
+        if (service == null) {
+            service = Service.builder()
+                    .address(mapped.address)
+                    .serviceAddress(mapped.address)
+                    .serviceName(instanceInfo.getAppName())
+                    .serviceID(instanceInfo.getId())
+                    .servicePort(mapped.port)
+                    .node(instanceInfo.getAppName())
+                    .nodeMeta(mapped.nodeMeta)
+                    .serviceMeta(mapped.serviceMeta)
+                    .serviceTags(NO_SERVICE_TAGS)
+                    .build();
+            mapped.service = service;
+        }
+        return service;
+    }
+
+    private ServiceHealth mapToHealth(InstanceInfo instanceInfo, MappedInstance mapped) {
+        ServiceHealth serviceHealth = mapped.serviceHealth;
+        if (serviceHealth == null) {
+            serviceHealth = buildServiceHealth(instanceInfo, mapped);
+            mapped.serviceHealth = serviceHealth;
+        }
+        return serviceHealth;
+    }
+
+    private ServiceHealth buildServiceHealth(InstanceInfo instanceInfo, MappedInstance mapped) {
         ServiceHealth.Node node = ServiceHealth.Node.builder()
                 .name(instanceInfo.getAppName())
-                .address(address)
-                .meta(metadataMapper.extractNodeMetadata(instanceInfo.getMetadata()))
+                .address(mapped.address)
+                .meta(mapped.nodeMeta)
                 .build();
         ServiceHealth.Service service = ServiceHealth.Service.builder()
                 .id(instanceInfo.getId())
                 .name(instanceInfo.getAppName())
                 .tags(NO_SERVICE_TAGS)
-                .address(address)
-                .meta(metadataMapper.extractServiceMetadata(instanceInfo.getMetadata()))
-                .port(getPort(instanceInfo))
+                .address(mapped.address)
+                .meta(mapped.serviceMeta)
+                .port(mapped.port)
                 .build();
         ServiceHealth.Check check = ServiceHealth.Check.builder()
                 .node(instanceInfo.getAppName())
                 .checkID("service:" + instanceInfo.getId())
                 .name("Service '" + instanceInfo.getId() + "' check")
-                .status(instanceInfo.getStatus().name())
+                .status(mapped.status.name())
                 .build();
         return ServiceHealth.builder()
                 .node(node)
@@ -94,6 +179,65 @@ public class InstanceInfoMapper {
                 .build();
     }
 
+    private static byte[] encodeArray(List<InstanceInfo> instances, Function<InstanceInfo, byte[]> encoder) {
+        byte[][] fragments = new byte[instances.size()][];
+        // brackets and separators
+        int length = 2 + Math.max(0, fragments.length - 1);
+        for (int i = 0; i < fragments.length; i++) {
+            fragments[i] = encoder.apply(instances.get(i));
+            length += fragments[i].length;
+        }
+        byte[] json = new byte[length];
+        int position = 0;
+        json[position++] = '[';
+        for (int i = 0; i < fragments.length; i++) {
+            if (i > 0) {
+                json[position++] = ',';
+            }
+            System.arraycopy(fragments[i], 0, json, position, fragments[i].length);
+            position += fragments[i].length;
+        }
+        json[position] = ']';
+        return json;
+    }
+
+    private byte[] encode(Object value) {
+        try {
+            return objectMapper.writeValueAsBytes(value);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Could not encode instance", e);
+        }
+    }
+
+    /**
+     * Eureka replaces the instance on registration and updates its timestamps on status changes,
+     * so a memoized mapping is valid as long as the instance and its timestamps are the same
+     */
+    private MappedInstance getMappedInstance(InstanceInfo instanceInfo) {
+        InstanceKey key = new InstanceKey(instanceInfo.getAppName(), instanceInfo.getId());
+        MappedInstance mapped = mappedInstances.get(key);
+        if (mapped != null && mapped.isMappingOf(instanceInfo)) {
+            return mapped;
+        }
+        mapped = new MappedInstance(instanceInfo, getAddress(instanceInfo), getPort(instanceInfo),
+                metadataMapper.partitionMetadata(instanceInfo.getMetadata()));
+        mappedInstances.put(key, mapped);
+        if (mappedInstances.size() > sweepThreshold) {
+            sweep();
+        }
+        return mapped;
+    }
+
+    /**
+     * Removes the entries of instances that are no longer referenced by eureka
+     */
+    private synchronized void sweep() {
+        if (mappedInstances.size() > sweepThreshold) {
+            mappedInstances.values().removeIf(mapped -> mapped.source.get() == null);
+            sweepThreshold = Math.max(MIN_SWEEP_THRESHOLD, mappedInstances.size() * 2);
+        }
+    }
+
     private String getAddress(InstanceInfo instanceInfo) {
         if (preferHostName) {
             return instanceInfo.getHostName();
@@ -112,9 +256,69 @@ public class InstanceInfoMapper {
 
     public void setPreferHostName(boolean preferHostName) {
         this.preferHostName = preferHostName;
+        mappedInstances.clear();
     }
 
     public void setMetadataMapper(MetadataMapper metadataMapper) {
         this.metadataMapper = metadataMapper;
+        mappedInstances.clear();
+    }
+
+    @Autowired(required = false)
+    public void setObjectMapper(ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
+        mappedInstances.clear();
+    }
+
+    /**
+     * Instance ids are only unique within an app, e.g. the host name of instances of different apps on one host
+     */
+    @EqualsAndHashCode
+    @RequiredArgsConstructor
+    private static class InstanceKey {
+        private final String appName;
+        private final String id;
+    }
+
+    /**
+     * The values of an instance that are used by all mappings and the mapped objects of each view,
+     * which are created on first use. Does not keep the instance itself from being garbage collected.
+     */
+    private static class MappedInstance {
+        private final WeakReference<InstanceInfo> source;
+        private final long lastDirtyTimestamp;
+        private final long lastUpdatedTimestamp;
+        private final InstanceStatus status;
+        private final String address;
+        private final int port;
+        private final Map<String, String> nodeMeta;
+        private final Map<String, String> serviceMeta;
+        private volatile Service service;
+        private volatile ServiceHealth serviceHealth;
+        private volatile byte[] serviceJson;
+        private volatile byte[] serviceHealthJson;
+
+        private MappedInstance(InstanceInfo instanceInfo, String address, int port, PartitionedMetadata metadata) {
+            this.source = new WeakReference<>(instanceInfo);
+            this.lastDirtyTimestamp = getLastDirtyTimestamp(instanceInfo);
+            this.lastUpdatedTimestamp = instanceInfo.getLastUpdatedTimestamp();
+            this.status = instanceInfo.getStatus();
+            this.address = address;
+            this.port = port;
+            this.nodeMeta = metadata.getNodeMetadata();
+            this.serviceMeta = metadata.getServiceMetadata();
+        }
+
+        private boolean isMappingOf(InstanceInfo instanceInfo) {
+            return source.get() == instanceInfo
+                    && lastDirtyTimestamp == getLastDirtyTimestamp(instanceInfo)
+                    && lastUpdatedTimestamp == instanceInfo.getLastUpdatedTimestamp()
+                    && status == instanceInfo.getStatus();
+        }
+
+        private static long getLastDirtyTimestamp(InstanceInfo instanceInfo) {
+            Long lastDirtyTimestamp = instanceInfo.getLastDirtyTimestamp();
+            return lastDirtyTimestamp == null ? 0L : lastDirtyTimestamp;
+        }
     }
 }
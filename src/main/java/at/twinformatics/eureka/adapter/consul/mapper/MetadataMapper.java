@@ -29,4 +29,12 @@ public interface MetadataMapper {
     Map<String, String> extractNodeMetadata(Map<String, String> instanceMetaData);
 
     Map<String, String> extractServiceMetadata(Map<String, String> instanceMetaData);
+
+    /**
+     * Extracts node and service metadata at once, implementations may do so in a single pass
+     */
+    default PartitionedMetadata partitionMetadata(Map<String, String> instanceMetaData) {
+        return new PartitionedMetadata(extractNodeMetadata(instanceMetaData),
+                extractServiceMetadata(instanceMetaData));
+    }
 }
@@ -26,42 +26,61 @@ import lombok.NonNull;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Component;
 
+import java.util.HashMap;
 import java.util.Map;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
 
 @ConditionalOnProperty(name = "eurekaConsulAdapter.useNodeMeta", havingValue = "true")
 @Component
 public class NodeMetadataMapper implements MetadataMapper {
 
     private final String nodeMetaPrefix;
-    private Pattern nodeMetaPattern;
 
     public NodeMetadataMapper(String nodeMetaPrefix) {
         this.nodeMetaPrefix = nodeMetaPrefix;
-        nodeMetaPattern = Pattern.compile(String.format("^%s.+$", nodeMetaPrefix));
     }
 
     @Override
     public Map<String, String> extractNodeMetadata(@NonNull Map<String, String> instanceMetaData) {
-        return instanceMetaData.entrySet().stream()
-                               .filter(entry -> nodeMetaPattern.matcher(entry.getKey()).matches())
-                               .collect(Collectors.toMap(
-                                   entry -> entry.getKey().substring(nodeMetaPrefix.length())
-                                   , Map.Entry::getValue
-                                   , (oldValue, newValue) -> newValue
-                               ));
+        Map<String, String> nodeMetadata = new HashMap<>();
+        for (Map.Entry<String, String> entry : instanceMetaData.entrySet()) {
+            if (isNodeMetaKey(entry.getKey())) {
+                nodeMetadata.put(entry.getKey().substring(nodeMetaPrefix.length()), entry.getValue());
+            }
+        }
+        return nodeMetadata;
     }
 
     @Override
-    public Map<String, String> extractServiceMetadata(
-        @NonNull Map<String, String> instanceMetaData) {
-        return instanceMetaData.entrySet().stream()
-                               .filter(e -> !nodeMetaPattern.matcher(e.getKey()).matches())
-                               .collect(Collectors.toMap(
-                                   Map.Entry::getKey
-                                   , Map.Entry::getValue
-                                   , (oldValue, newValue) -> newValue)
-                               );
+    public Map<String, String> extractServiceMetadata(@NonNull Map<String, String> instanceMetaData) {
+        Map<String, String> serviceMetadata = new HashMap<>();
+        for (Map.Entry<String, String> entry : instanceMetaData.entrySet()) {
+            if (!isNodeMetaKey(entry.getKey())) {
+                serviceMetadata.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return serviceMetadata;
+    }
+
+    /**
+     * Moves the entries whose key starts with the prefix (and is longer than it) to the node metadata
+     * and trims the prefix, all other entries are service metadata
+     */
+    @Override
+    public PartitionedMetadata partitionMetadata(@NonNull Map<String, String> instanceMetaData) {
+        Map<String, String> nodeMetadata = new HashMap<>();
+        Map<String, String> serviceMetadata = new HashMap<>();
+        for (Map.Entry<String, String> entry : instanceMetaData.entrySet()) {
+            String key = entry.getKey();
+            if (isNodeMetaKey(key)) {
+                nodeMetadata.put(key.substring(nodeMetaPrefix.length()), entry.getValue());
+            } else {
+                serviceMetadata.put(key, entry.getValue());
+            }
+        }
+        return new PartitionedMetadata(nodeMetadata, serviceMetadata);
+    }
+
+    private boolean isNodeMetaKey(String key) {
+        return key.length() > nodeMetaPrefix.length() && key.startsWith(nodeMetaPrefix);
     }
 }
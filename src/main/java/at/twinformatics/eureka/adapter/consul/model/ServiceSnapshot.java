@@ -0,0 +1,71 @@
+/**
+ * The MIT License
+ * Copyright © 2018 Twinformatics GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package at.twinformatics.eureka.adapter.consul.model;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.http.ResponseEntity;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Contains the encoded response body of a service with the change index it was built for.
+ * The gzipped body is compressed once on first use, the responses are built once and shared by all requests.
+ */
+@Getter
+public class ServiceSnapshot {
+    private final long changeIndex;
+    private final byte[] body;
+    private volatile byte[] gzippedBody;
+    @Setter
+    private volatile ResponseEntity<byte[]> response;
+    @Setter
+    private volatile ResponseEntity<byte[]> gzippedResponse;
+
+    public ServiceSnapshot(long changeIndex, byte[] body) {
+        this.changeIndex = changeIndex;
+        this.body = body;
+    }
+
+    public byte[] getGzippedBody() {
+        byte[] gzipped = gzippedBody;
+        if (gzipped == null) {
+            // concurrent callers may compress twice, but always to the same result
+            gzipped = gzip(body);
+            gzippedBody = gzipped;
+        }
+        return gzipped;
+    }
+
+    private static byte[] gzip(byte[] body) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 4 + 32);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(body);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not compress response body", e);
+        }
+        return out.toByteArray();
+    }
+}
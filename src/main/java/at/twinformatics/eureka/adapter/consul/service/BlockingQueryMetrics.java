@@ -0,0 +1,182 @@
+/**
+ * The MIT License
+ * Copyright © 2018 Twinformatics GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package at.twinformatics.eureka.adapter.consul.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * Micrometer metrics of blocking queries: waiting queries per endpoint, how long they wait and why they return,
+ * how long building a response takes and how long a change takes to wake up its waiting queries.
+ * Falls back to the global registry of Micrometer if there is no {@link MeterRegistry} bean.
+ */
+@Component
+public class BlockingQueryMetrics {
+
+    private static final String PREFIX = "eureka.consul.adapter";
+    private static final String TAG_ENDPOINT = "endpoint";
+    private static final String TAG_OUTCOME = "outcome";
+    private static final String OUTCOME_CHANGE = "change";
+    private static final String OUTCOME_TIMEOUT = "timeout";
+    private static final String OUTCOME_IMMEDIATE = "immediate";
+
+    private final MeterRegistry meterRegistry;
+    private final ConcurrentMap<String, EndpointMeters> endpointMeters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Timer> responseBuildTimers = new ConcurrentHashMap<>();
+    private final Timer changePropagation;
+
+    @Autowired
+    public BlockingQueryMetrics(ObjectProvider<MeterRegistry> meterRegistry) {
+        this(meterRegistry.getIfAvailable(() -> Metrics.globalRegistry));
+    }
+
+    public BlockingQueryMetrics(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+        this.changePropagation = Timer.builder(PREFIX + ".change.propagation")
+                .description("Time from publishing a change until a waiting query is woken up by it")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+    }
+
+    /**
+     * Counts the query as waiting until it returns or is cancelled, and records how long it waited and
+     * whether it returned because of a change or a timeout. Queries that return without waiting, e.g. without
+     * index or with an index behind the current one, are only counted as immediate returns.
+     */
+    public <T> CompletableFuture<T> recordWait(String endpoint, Long index, CompletableFuture<T> response,
+                                               ToLongFunction<T> changeIndexOf) {
+        EndpointMeters meters = endpointMeters.get(endpoint);
+        if (meters == null) {
+            meters = endpointMeters.computeIfAbsent(endpoint, EndpointMeters::new);
+        }
+        if (response.isDone()) {
+            // returned without waiting, no need to count it as waiting or to register a callback
+            if (!response.isCompletedExceptionally()) {
+                meters.immediateReturns.increment();
+            }
+            return response;
+        }
+        long start = System.nanoTime();
+        EndpointMeters waitingMeters = meters;
+        waitingMeters.waiters.incrementAndGet();
+        response.whenComplete((item, error) -> {
+            waitingMeters.waiters.decrementAndGet();
+            if (item != null) {
+                recordReturn(waitingMeters, index, changeIndexOf.applyAsLong(item), start);
+            }
+        });
+        return response;
+    }
+
+    private static void recordReturn(EndpointMeters meters, Long index, long changeIndex, long start) {
+        boolean timedOut = index != null && index == changeIndex;
+        (timedOut ? meters.timedOutWaits : meters.changedWaits)
+                .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        (timedOut ? meters.timeouts : meters.changeWakeups).increment();
+    }
+
+    public byte[] recordResponseBuild(String endpoint, Supplier<byte[]> build) {
+        return responseBuildTimers.computeIfAbsent(endpoint, e -> Timer.builder(PREFIX + ".response.build")
+                .description("Time to map and encode a response after a change")
+                .tag(TAG_ENDPOINT, e)
+                .register(meterRegistry))
+                .record(build);
+    }
+
+    public void recordChangePropagation(long publishedNanos) {
+        changePropagation.record(System.nanoTime() - publishedNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void registerChangeCounters(ServiceChangeDetector serviceChangeDetector) {
+        FunctionCounter.builder(PREFIX + ".changes.received", serviceChangeDetector,
+                ServiceChangeDetector::getReceivedChanges)
+                .description("Changes reported by the registry")
+                .register(meterRegistry);
+        FunctionCounter.builder(PREFIX + ".changes.emitted", serviceChangeDetector,
+                ServiceChangeDetector::getEmittedChanges)
+                .description("Changes published to waiting queries after coalescing")
+                .register(meterRegistry);
+    }
+
+    public void registerTimer(BlockingQueryTimer timer) {
+        Gauge.builder(PREFIX + ".timer.pending", timer, BlockingQueryTimer::getPending)
+                .description("Timeouts of waiting queries that neither expired nor were cancelled yet")
+                .register(meterRegistry);
+        FunctionCounter.builder(PREFIX + ".timer.expired", timer, BlockingQueryTimer::getExpired)
+                .description("Timeouts of waiting queries that expired")
+                .register(meterRegistry);
+        FunctionCounter.builder(PREFIX + ".timer.cancelled", timer, BlockingQueryTimer::getCancelled)
+                .description("Timeouts of waiting queries that were cancelled by a change or a disconnect")
+                .register(meterRegistry);
+    }
+
+    private class EndpointMeters {
+        private final AtomicInteger waiters = new AtomicInteger();
+        private final Timer changedWaits;
+        private final Timer timedOutWaits;
+        private final Counter changeWakeups;
+        private final Counter timeouts;
+        private final Counter immediateReturns;
+
+        EndpointMeters(String endpoint) {
+            Gauge.builder(PREFIX + ".waiters", waiters, AtomicInteger::get)
+                    .description("Queries waiting for a change")
+                    .tag(TAG_ENDPOINT, endpoint)
+                    .register(meterRegistry);
+            changedWaits = waitTimer(endpoint, OUTCOME_CHANGE);
+            timedOutWaits = waitTimer(endpoint, OUTCOME_TIMEOUT);
+            changeWakeups = wakeupCounter(endpoint, OUTCOME_CHANGE);
+            timeouts = wakeupCounter(endpoint, OUTCOME_TIMEOUT);
+            immediateReturns = wakeupCounter(endpoint, OUTCOME_IMMEDIATE);
+        }
+
+        private Timer waitTimer(String endpoint, String outcome) {
+            return Timer.builder(PREFIX + ".wait")
+                    .description("Time a query waited before it returned")
+                    .tags(TAG_ENDPOINT, endpoint, TAG_OUTCOME, outcome)
+                    .register(meterRegistry);
+        }
+
+        private Counter wakeupCounter(String endpoint, String outcome) {
+            return Counter.builder(PREFIX + ".wakeups")
+                    .description("Queries returned because of a change or a timeout, or at once without waiting")
+                    .tags(TAG_ENDPOINT, endpoint, TAG_OUTCOME, outcome)
+                    .register(meterRegistry);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/**
+ * The MIT License
+ * Copyright © 2018 Twinformatics GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package at.twinformatics.eureka.adapter.consul.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Enforces a minimum interval between the returns of blocking queries of a client for the same service.
+ * A query that would return earlier is held back until the interval passed, so a client that follows
+ * a flapping service does not re-request it in a tight loop. Queries held back at the same time return together,
+ * and no query is held back beyond its wait time.
+ */
+@Component
+public class BlockingQueryRateLimiter {
+
+    private static final int MIN_SWEEP_THRESHOLD = 1024;
+
+    private final ServiceChangeDetector serviceChangeDetector;
+    private final LongSupplier nanoClock;
+
+    @Value("${eurekaConsulAdapter.minReturnIntervalMillis:0}")
+    private long minReturnIntervalMillis;
+
+    // last batch of returns per client and service, held back until it is released
+    private final ConcurrentMap<String, Batch> lastReturns = new ConcurrentHashMap<>();
+    private volatile int sweepThreshold = MIN_SWEEP_THRESHOLD;
+
+    @Autowired
+    public BlockingQueryRateLimiter(ServiceChangeDetector serviceChangeDetector) {
+        this(serviceChangeDetector, System::nanoTime);
+    }
+
+    BlockingQueryRateLimiter(ServiceChangeDetector serviceChangeDetector, LongSupplier nanoClock) {
+        this.serviceChangeDetector = serviceChangeDetector;
+        this.nanoClock = nanoClock;
+    }
+
+    /**
+     * Returns a future that completes like the query, but not before the minimum interval since the last return
+     * of a blocking query of the client for the service passed, and not after the wait time of the query.
+     * Queries without index are not limited. Cancelling the returned future cancels the query.
+     * Endpoints that are not about a single service pass a name that can not be a service name.
+     */
+    public <T> CompletableFuture<T> limit(String client, String serviceName, Long index, long waitMillis,
+                                          CompletableFuture<T> query) {
+        if (minReturnIntervalMillis <= 0 || index == null) {
+            return query;
+        }
+
+        String key = client + ' ' + serviceName;
+        long deadline = nanoClock.getAsLong() + TimeUnit.MILLISECONDS.toNanos(waitMillis);
+        CompletableFuture<T> limited = new CompletableFuture<>();
+        query.whenComplete((item, error) -> {
+            if (error != null) {
+                limited.completeExceptionally(error);
+                return;
+            }
+            long now = nanoClock.getAsLong();
+            long intervalNanos = TimeUnit.MILLISECONDS.toNanos(minReturnIntervalMillis);
+            // a batch that is still held back is joined instead of queueing another interval behind it,
+            // a released one is never joined, so a return can not slip out with a batch that already left
+            Batch batch = lastReturns.compute(key, (name, last) -> {
+                if (last != null && !last.isReleased()) {
+                    return last;
+                }
+                long returnAt = last == null ? now : Math.max(now, last.returnAt + intervalNanos);
+                return returnAt - now > 0 ? hold(returnAt, now) : new Batch(now, true);
+            });
+            if (batch.isReleased() || deadline - now <= 0) {
+                limited.complete(item);
+            } else {
+                batch.released.thenRun(() -> limited.complete(item));
+                if (deadline - batch.returnAt < 0) {
+                    serviceChangeDetector.schedule(() -> limited.complete(item), toMillis(deadline - now));
+                }
+            }
+            if (lastReturns.size() > sweepThreshold) {
+                sweep(now, intervalNanos);
+            }
+        });
+        limited.whenComplete((item, error) -> query.cancel(false));
+        return limited;
+    }
+
+    public void setMinReturnIntervalMillis(long minReturnIntervalMillis) {
+        this.minReturnIntervalMillis = minReturnIntervalMillis;
+    }
+
+    public void reset() {
+        lastReturns.clear();
+    }
+
+    /**
+     * Creates a batch that is released at the given time. Called once per batch within compute, so each batch
+     * schedules exactly one release.
+     */
+    private Batch hold(long returnAt, long now) {
+        Batch batch = new Batch(returnAt, false);
+        serviceChangeDetector.schedule(() -> batch.released.complete(null), toMillis(returnAt - now));
+        return batch;
+    }
+
+    /**
+     * Removes the released batches whose interval passed, they no longer hold back any query
+     */
+    private synchronized void sweep(long now, long intervalNanos) {
+        if (lastReturns.size() > sweepThreshold) {
+            lastReturns.values().removeIf(last -> last.isReleased() && last.returnAt + intervalNanos - now <= 0);
+            sweepThreshold = Math.max(MIN_SWEEP_THRESHOLD, lastReturns.size() * 2);
+        }
+    }
+
+    /**
+     * Rounds up, so that a return is never released before its time
+     */
+    private static long toMillis(long nanos) {
+        return (nanos + TimeUnit.MILLISECONDS.toNanos(1) - 1) / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * Returns of a client for a service that leave together
+     */
+    private static class Batch {
+        private final long returnAt;
+        private final CompletableFuture<Void> released = new CompletableFuture<>();
+
+        private Batch(long returnAt, boolean released) {
+            this.returnAt = returnAt;
+            if (released) {
+                this.released.complete(null);
+            }
+        }
+
+        private boolean isReleased() {
+            return released.isDone();
+        }
+    }
+}
@@ -0,0 +1,357 @@
+/**
+ * The MIT License
+ * Copyright © 2018 Twinformatics GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package at.twinformatics.eureka.adapter.consul.service;
+
+import at.twinformatics.eureka.adapter.consul.model.IndexedInstance;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Compiles a subset of Consul's filter expressions into a predicate on instances.
+ * Supports {@code ==}, {@code !=}, {@code is (not) empty}, {@code (not) in}, {@code (not) contains},
+ * {@code (not) matches}, {@code and}, {@code or}, {@code not} and parentheses.
+ * Details see https://www.consul.io/api/features/filtering.html
+ */
+final class FilterExpressionParser {
+
+    private static final List<String> NO_SERVICE_TAGS = Collections.emptyList();
+
+    private final String expression;
+    private final List<Token> tokens;
+    private int position;
+
+    private FilterExpressionParser(String expression) {
+        this.expression = expression;
+        this.tokens = tokenize(expression);
+    }
+
+    static Predicate<IndexedInstance> parse(String expression) {
+        FilterExpressionParser parser = new FilterExpressionParser(expression);
+        Predicate<IndexedInstance> predicate = parser.parseOr();
+        if (parser.position < parser.tokens.size()) {
+            throw parser.invalid("unexpected '" + parser.tokens.get(parser.position).text + "'");
+        }
+        return predicate;
+    }
+
+    private Predicate<IndexedInstance> parseOr() {
+        Predicate<IndexedInstance> predicate = parseAnd();
+        while (acceptKeyword("or")) {
+            predicate = predicate.or(parseAnd());
+        }
+        return predicate;
+    }
+
+    private Predicate<IndexedInstance> parseAnd() {
+        Predicate<IndexedInstance> predicate = parseNot();
+        while (acceptKeyword("and")) {
+            predicate = predicate.and(parseNot());
+        }
+        return predicate;
+    }
+
+    private Predicate<IndexedInstance> parseNot() {
+        if (acceptKeyword("not")) {
+            return parseNot().negate();
+        }
+        if (accept("(")) {
+            Predicate<IndexedInstance> predicate = parseOr();
+            expect(")");
+            return predicate;
+        }
+        return parseMatch();
+    }
+
+    private Predicate<IndexedInstance> parseMatch() {
+        Token first = next();
+        if (isKeyword(peek(), "in") || (isKeyword(peek(), "not") && isKeyword(peek(1), "in"))) {
+            boolean negate = acceptKeyword("not");
+            expectKeyword("in");
+            return negateIf(negate, contains(selector(next()), first.text));
+        }
+
+        Selector selector = selector(first);
+        if (accept("==")) {
+            return equalTo(selector, next().text);
+        }
+        if (accept("!=")) {
+            return equalTo(selector, next().text).negate();
+        }
+        if (acceptKeyword("is")) {
+            boolean negate = acceptKeyword("not");
+            expectKeyword("empty");
+            return negateIf(negate, instance -> isEmpty(selector.apply(instance)));
+        }
+        boolean negate = acceptKeyword("not");
+        if (acceptKeyword("contains")) {
+            return negateIf(negate, contains(selector, next().text));
+        }
+        if (acceptKeyword("matches")) {
+            return negateIf(negate, matches(selector, next().text));
+        }
+        throw invalid("missing operator after '" + first.text + "'");
+    }
+
+    private Predicate<IndexedInstance> equalTo(Selector selector, String value) {
+        if (selector.collection) {
+            throw invalid("'" + selector.name + "' can not be compared with ==");
+        }
+        return instance -> value.equals(selector.apply(instance));
+    }
+
+    private Predicate<IndexedInstance> contains(Selector selector, String value) {
+        return instance -> {
+            Object selected = selector.apply(instance);
+            if (selected instanceof Map) {
+                return ((Map<?, ?>) selected).containsKey(value);
+            } else if (selected instanceof Collection) {
+                return ((Collection<?>) selected).contains(value);
+            } else {
+                return selected != null && ((String) selected).contains(value);
+            }
+        };
+    }
+
+    private Predicate<IndexedInstance> matches(Selector selector, String regex) {
+        if (selector.collection) {
+            throw invalid("'" + selector.name + "' can not be matched");
+        }
+        Pattern pattern;
+        try {
+            pattern = Pattern.compile(regex);
+        } catch (PatternSyntaxException e) {
+            throw invalid("invalid regular expression '" + regex + "'");
+        }
+        return instance -> {
+            Object selected = selector.apply(instance);
+            return selected != null && pattern.matcher((String) selected).find();
+        };
+    }
+
+    private static boolean isEmpty(Object selected) {
+        if (selected instanceof Map) {
+            return ((Map<?, ?>) selected).isEmpty();
+        } else if (selected instanceof Collection) {
+            return ((Collection<?>) selected).isEmpty();
+        } else {
+            return selected == null || ((String) selected).isEmpty();
+        }
+    }
+
+    private static Predicate<IndexedInstance> negateIf(boolean negate, Predicate<IndexedInstance> predicate) {
+        return negate ? predicate.negate() : predicate;
+    }
+
+    /**
+     * Accepts the selectors of both the catalog and the health endpoint
+     */
+    private Selector selector(Token token) {
+        if (token.quoted) {
+            throw invalid("expected a selector instead of \"" + token.text + "\"");
+        }
+        String name = token.text;
+        switch (name) {
+            case "ID":
+            case "ServiceID":
+            case "Service.ID":
+                return new Selector(name, false, instance -> instance.getInstanceInfo().getId());
+            case "Node":
+            case "Node.Node":
+            case "ServiceName":
+            case "Service.Service":
+                return new Selector(name, false, instance -> instance.getInstanceInfo().getAppName());
+            case "Address":
+            case "ServiceAddress":
+            case "Node.Address":
+            case "Service.Address":
+                return new Selector(name, false, IndexedInstance::getAddress);
+            case "ServicePort":
+            case "Service.Port":
+                return new Selector(name, false, instance -> String.valueOf(instance.getPort()));
+            case "ServiceTags":
+            case "Service.Tags":
+                return new Selector(name, true, instance -> NO_SERVICE_TAGS);
+            case "NodeMeta":
+            case "Node.Meta":
+                return new Selector(name, true, IndexedInstance::getNodeMeta);
+            case "ServiceMeta":
+            case "Service.Meta":
+                return new Selector(name, true, IndexedInstance::getServiceMeta);
+            default:
+                return metaSelector(name);
+        }
+    }
+
+    private Selector metaSelector(String name) {
+        for (String prefix : new String[]{"NodeMeta.", "Node.Meta."}) {
+            if (name.startsWith(prefix) && name.length() > prefix.length()) {
+                String key = name.substring(prefix.length());
+                return new Selector(name, false, instance -> instance.getNodeMeta().get(key));
+            }
+        }
+        for (String prefix : new String[]{"ServiceMeta.", "Service.Meta."}) {
+            if (name.startsWith(prefix) && name.length() > prefix.length()) {
+                String key = name.substring(prefix.length());
+                return new Selector(name, false, instance -> instance.getServiceMeta().get(key));
+            }
+        }
+        throw invalid("unknown selector '" + name + "'");
+    }
+
+    private Token peek() {
+        return peek(0);
+    }
+
+    private Token peek(int offset) {
+        int index = position + offset;
+        return index < tokens.size() ? tokens.get(index) : null;
+    }
+
+    private Token next() {
+        Token token = peek();
+        if (token == null) {
+            throw invalid("unexpected end");
+        }
+        position++;
+        return token;
+    }
+
+    private boolean accept(String symbol) {
+        Token token = peek();
+        if (token != null && !token.quoted && token.text.equals(symbol)) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean acceptKeyword(String keyword) {
+        if (isKeyword(peek(), keyword)) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(String symbol) {
+        if (!accept(symbol)) {
+            throw invalid("expected '" + symbol + "'");
+        }
+    }
+
+    private void expectKeyword(String keyword) {
+        if (!acceptKeyword(keyword)) {
+            throw invalid("expected '" + keyword + "'");
+        }
+    }
+
+    private static boolean isKeyword(Token token, String keyword) {
+        return token != null && !token.quoted && token.text.equals(keyword);
+    }
+
+    private IllegalArgumentException invalid(String reason) {
+        return new IllegalArgumentException("Invalid filter '" + expression + "': " + reason);
+    }
+
+    private List<Token> tokenize(String expression) {
+        List<Token> result = new ArrayList<>();
+        int i = 0;
+        while (i < expression.length()) {
+            char c = expression.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '(' || c == ')') {
+                result.add(new Token(String.valueOf(c), false));
+                i++;
+            } else if ((c == '=' || c == '!') && expression.startsWith("=", i + 1)) {
+                result.add(new Token(expression.substring(i, i + 2), false));
+                i += 2;
+            } else if (c == '"' || c == '`') {
+                i = readQuoted(expression, i, result);
+            } else {
+                int start = i;
+                while (i < expression.length() && !Character.isWhitespace(expression.charAt(i))
+                        && "()=!\"`".indexOf(expression.charAt(i)) < 0) {
+                    i++;
+                }
+                if (start == i) {
+                    throw invalid("unexpected '" + c + "'");
+                }
+                result.add(new Token(expression.substring(start, i), false));
+            }
+        }
+        return result;
+    }
+
+    private int readQuoted(String expression, int start, List<Token> result) {
+        char quote = expression.charAt(start);
+        StringBuilder value = new StringBuilder();
+        int i = start + 1;
+        while (i < expression.length() && expression.charAt(i) != quote) {
+            // backquoted strings are raw, double quoted strings allow escaping
+            if (quote == '"' && expression.charAt(i) == '\\' && i + 1 < expression.length()) {
+                i++;
+            }
+            value.append(expression.charAt(i++));
+        }
+        if (i >= expression.length()) {
+            throw invalid("unterminated string");
+        }
+        result.add(new Token(value.toString(), true));
+        return i + 1;
+    }
+
+    private static final class Token {
+        private final String text;
+        private final boolean quoted;
+
+        private Token(String text, boolean quoted) {
+            this.text = text;
+            this.quoted = quoted;
+        }
+    }
+
+    private static final class Selector {
+        private final String name;
+        private final boolean collection;
+        private final Function<IndexedInstance, Object> value;
+
+        private Selector(String name, boolean collection, Function<IndexedInstance, Object> value) {
+            this.name = name;
+            this.collection = collection;
+            this.value = value;
+        }
+
+        private Object apply(IndexedInstance instance) {
+            return value.apply(instance);
+        }
+    }
+}
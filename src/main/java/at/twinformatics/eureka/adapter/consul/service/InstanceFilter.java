@@ -0,0 +1,85 @@
+/**
+ * The MIT License
+ * Copyright © 2018 Twinformatics GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package at.twinformatics.eureka.adapter.consul.service;
+
+import at.twinformatics.eureka.adapter.consul.model.IndexedInstance;
+import com.netflix.appinfo.InstanceInfo.InstanceStatus;
+import lombok.Getter;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Restricts the instances of a service by Consul's filter, tag, node-meta and passing query parameters.
+ * Create it with {@link ServiceInstanceIndex#createFilter(String, List, List, boolean)}.
+ */
+@Getter
+public class InstanceFilter {
+
+    static final InstanceFilter NONE =
+            new InstanceFilter(null, Collections.emptyList(), Collections.emptyMap(), false);
+    static final InstanceFilter PASSING =
+            new InstanceFilter(null, Collections.emptyList(), Collections.emptyMap(), true);
+
+    private final Predicate<IndexedInstance> expression;
+    private final List<String> tags;
+    private final Map<String, String> nodeMeta;
+    private final boolean passing;
+
+    InstanceFilter(Predicate<IndexedInstance> expression, List<String> tags, Map<String, String> nodeMeta,
+                   boolean passing) {
+        this.expression = expression;
+        this.tags = tags;
+        this.nodeMeta = nodeMeta;
+        this.passing = passing;
+    }
+
+    public boolean isEmpty() {
+        return this == NONE;
+    }
+
+    /**
+     * Only selects the instances that are UP, so the result is the same for all clients of a service
+     */
+    public boolean isPassingOnly() {
+        return this == PASSING;
+    }
+
+    boolean test(IndexedInstance instance) {
+        // eureka does not have the concept of service tags, so no instance has the requested tags
+        if (!tags.isEmpty()) {
+            return false;
+        }
+        if (passing && instance.getInstanceInfo().getStatus() != InstanceStatus.UP) {
+            return false;
+        }
+        for (Map.Entry<String, String> entry : nodeMeta.entrySet()) {
+            if (!entry.getValue().equals(instance.getNodeMeta().get(entry.getKey()))) {
+                return false;
+            }
+        }
+        return expression == null || expression.test(instance);
+    }
+}
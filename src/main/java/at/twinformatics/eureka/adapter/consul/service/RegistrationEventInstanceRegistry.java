@@ -23,17 +23,36 @@
 package at.twinformatics.eureka.adapter.consul.service;
 
 import com.netflix.appinfo.InstanceInfo;
+import com.netflix.appinfo.InstanceInfo.InstanceStatus;
 import com.netflix.discovery.EurekaClient;
 import com.netflix.discovery.EurekaClientConfig;
 import com.netflix.eureka.EurekaServerConfig;
 import com.netflix.eureka.resources.ServerCodecs;
+import lombok.EqualsAndHashCode;
+import lombok.RequiredArgsConstructor;
 import org.springframework.cloud.netflix.eureka.server.InstanceRegistry;
 import org.springframework.stereotype.Component;
 
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static com.netflix.appinfo.InstanceInfo.PortType.SECURE;
+
 @Component
 public class RegistrationEventInstanceRegistry extends InstanceRegistry {
 
+    private static final String[] NO_SERVICE_TAGS = new String[0];
+
     private final ServiceChangeDetector serviceChangeDetector;
+    // content of each instance as rendered by the adapter, to skip changes that do not alter it
+    private final ConcurrentMap<InstanceKey, InstanceFingerprint> fingerprints = new ConcurrentHashMap<>();
+    // number of instances per app, the service names are only rebuilt if an app appears or disappears
+    private final ConcurrentMap<String, Integer> instanceCounts = new ConcurrentHashMap<>();
+    private volatile SortedMap<String, String[]> serviceNames = Collections.emptySortedMap();
 
     public RegistrationEventInstanceRegistry(EurekaServerConfig serverConfig, EurekaClientConfig clientConfig,
                                              ServerCodecs serverCodecs, EurekaClient eurekaClient,
@@ -47,19 +66,158 @@ public class RegistrationEventInstanceRegistry extends InstanceRegistry {
     @Override
     public void register(InstanceInfo info, boolean isReplication) {
         super.register(info, isReplication);
-        serviceChangeDetector.publish(info.getAppName(), System.currentTimeMillis());
+        publishIfChanged(info.getAppName(), info.getId());
     }
 
     @Override
     public void register(InstanceInfo info, int leaseDuration, boolean isReplication) {
         super.register(info, leaseDuration, isReplication);
-        serviceChangeDetector.publish(info.getAppName(), System.currentTimeMillis());
+        publishIfChanged(info.getAppName(), info.getId());
     }
 
+    /**
+     * Covers cancellations by clients as well as evictions of expired leases
+     */
     @Override
-    public boolean cancel(String appName, String serverId, boolean isReplication) {
-        boolean wasCancelled = super.cancel(appName, serverId, isReplication);
-        serviceChangeDetector.publish(appName, System.currentTimeMillis());
+    protected boolean internalCancel(String appName, String id, boolean isReplication) {
+        boolean wasCancelled = super.internalCancel(appName, id, isReplication);
+        if (wasCancelled) {
+            removeFingerprint(appName, id);
+            serviceChangeDetector.publish(appName);
+        }
         return wasCancelled;
     }
+
+    @Override
+    public boolean renew(String appName, String serverId, boolean isReplication) {
+        // a renewal applies the overridden status of an instance, which may change the status
+        InstanceStatus statusBefore = getStatus(appName, serverId);
+        boolean wasRenewed = super.renew(appName, serverId, isReplication);
+        if (wasRenewed && statusBefore != getStatus(appName, serverId)) {
+            publishIfChanged(appName, serverId);
+        }
+        return wasRenewed;
+    }
+
+    @Override
+    public boolean statusUpdate(String appName, String id, InstanceStatus newStatus, String lastDirtyTimestamp,
+                                boolean isReplication) {
+        boolean wasUpdated = super.statusUpdate(appName, id, newStatus, lastDirtyTimestamp, isReplication);
+        if (wasUpdated) {
+            publishIfChanged(appName, id);
+        }
+        return wasUpdated;
+    }
+
+    @Override
+    public boolean deleteStatusOverride(String appName, String id, InstanceStatus newStatus,
+                                        String lastDirtyTimestamp, boolean isReplication) {
+        boolean wasDeleted = super.deleteStatusOverride(appName, id, newStatus, lastDirtyTimestamp, isReplication);
+        if (wasDeleted) {
+            publishIfChanged(appName, id);
+        }
+        return wasDeleted;
+    }
+
+    @Override
+    public void clearRegistry() {
+        super.clearRegistry();
+        fingerprints.clear();
+        instanceCounts.clear();
+        updateServiceNames();
+    }
+
+    /**
+     * Returns the names of all apps with at least one instance, sorted by name. The returned map is immutable
+     * and replaced as a whole whenever an app is added or removed.
+     */
+    public Map<String, String[]> getServiceNames() {
+        return serviceNames;
+    }
+
+    private InstanceStatus getStatus(String appName, String id) {
+        InstanceInfo instanceInfo = getInstanceByAppAndId(appName, id, false);
+        return instanceInfo == null ? null : instanceInfo.getStatus();
+    }
+
+    /**
+     * Publishes a change only if the stored instance differs from the one last published, so that
+     * re-registrations by heartbeats or peer replication do not wake up waiting queries
+     */
+    private void publishIfChanged(String appName, String id) {
+        InstanceInfo instanceInfo = getInstanceByAppAndId(appName, id, false);
+        if (instanceInfo == null) {
+            removeFingerprint(appName, id);
+            serviceChangeDetector.publish(appName);
+            return;
+        }
+        InstanceFingerprint fingerprint = new InstanceFingerprint(instanceInfo);
+        InstanceFingerprint previous = fingerprints.put(new InstanceKey(appName, id), fingerprint);
+        if (fingerprint.equals(previous)) {
+            return;
+        }
+        if (previous == null) {
+            addInstanceOf(appName);
+        }
+        serviceChangeDetector.publish(appName);
+    }
+
+    private void removeFingerprint(String appName, String id) {
+        // counted by the app of the key, which is the app the registry stores the instance under
+        if (fingerprints.remove(new InstanceKey(appName, id)) != null) {
+            removeInstanceOf(appName);
+        }
+    }
+
+    private void addInstanceOf(String appName) {
+        if (instanceCounts.merge(appName, 1, Integer::sum) == 1) {
+            updateServiceNames();
+        }
+    }
+
+    private void removeInstanceOf(String appName) {
+        if (instanceCounts.computeIfPresent(appName, (name, count) -> count > 1 ? count - 1 : null) == null) {
+            updateServiceNames();
+        }
+    }
+
+    private synchronized void updateServiceNames() {
+        // rebuilt from the current apps, so the last update always reflects all preceding changes
+        SortedMap<String, String[]> names = new TreeMap<>();
+        instanceCounts.keySet().forEach(name -> names.put(name, NO_SERVICE_TAGS));
+        serviceNames = Collections.unmodifiableSortedMap(names);
+    }
+
+    /**
+     * Instance ids are only unique within an app, e.g. the host name of instances of different apps on one host
+     */
+    @EqualsAndHashCode
+    @RequiredArgsConstructor
+    private static class InstanceKey {
+        private final String appName;
+        private final String id;
+    }
+
+    @EqualsAndHashCode
+    private static class InstanceFingerprint {
+        private final String appName;
+        private final String ipAddr;
+        private final String hostName;
+        private final int port;
+        private final int securePort;
+        private final boolean securePortEnabled;
+        private final InstanceStatus status;
+        private final int metadataHash;
+
+        InstanceFingerprint(InstanceInfo instanceInfo) {
+            this.appName = instanceInfo.getAppName();
+            this.ipAddr = instanceInfo.getIPAddr();
+            this.hostName = instanceInfo.getHostName();
+            this.port = instanceInfo.getPort();
+            this.securePort = instanceInfo.getSecurePort();
+            this.securePortEnabled = instanceInfo.isPortEnabled(SECURE);
+            this.status = instanceInfo.getStatus();
+            this.metadataHash = instanceInfo.getMetadata().hashCode();
+        }
+    }
 }
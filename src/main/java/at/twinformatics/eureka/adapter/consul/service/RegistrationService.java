@@ -25,25 +25,17 @@ package at.twinformatics.eureka.adapter.consul.service;
 import at.twinformatics.eureka.adapter.consul.model.ChangeItem;
 import com.netflix.appinfo.InstanceInfo;
 import com.netflix.discovery.shared.Application;
-import com.netflix.eureka.registry.PeerAwareInstanceRegistry;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Component;
-import org.springframework.util.LinkedMultiValueMap;
-import org.springframework.util.MultiValueMap;
-import rx.Observable;
-import rx.Single;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
-import java.util.function.BinaryOperator;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Function;
-import java.util.function.Supplier;
-
-import static java.util.stream.Collectors.toMap;
 
 /**
  * Returns Services and List of Service with its last changed
@@ -53,47 +45,70 @@ import static java.util.stream.Collectors.toMap;
 @Slf4j
 public class RegistrationService {
 
-    private static final BinaryOperator<String[]> MERGE_FUNCTION = (u,v) -> {
-        throw new IllegalStateException("Duplicate key");
-    };
+    private final RegistrationEventInstanceRegistry registry;
+    private final ServiceChangeDetector serviceChangeDetector;
 
-    private static final String[] NO_SERVICE_TAGS = new String[0];
+    public CompletableFuture<ChangeItem<Map<String, String[]>>> getServiceNames(long waitMillis, Long index) {
+        return map(getCatalogIndex(waitMillis, index),
+                changeIndex -> new ChangeItem<>(registry.getServiceNames(), changeIndex));
+    }
 
-    private final PeerAwareInstanceRegistry registry;
-    private final ServiceChangeDetector serviceChangeDetector;
+    /**
+     * Waits for a change of the service and returns its change index without collecting its instances,
+     * so that callers can reuse a response they already built for this index
+     */
+    public CompletableFuture<Long> getServiceIndex(String appName, long waitMillis, Long index) {
+        long lastIndex = serviceChangeDetector.getLastEmittedOfApp(appName);
+        return isBehind(index, lastIndex) ? CompletableFuture.completedFuture(lastIndex)
+                : serviceChangeDetector.getIndexOfApp(appName, index, waitMillis);
+    }
 
-    public Single<ChangeItem<Map<String, String[]>>> getServiceNames(long waitMillis, Long index) {
-        return returnDeferred(waitMillis, index, serviceChangeDetector::getLastEmitted,
-                serviceChangeDetector::getTotalIndex,
-                () -> registry.getApplications().getRegisteredApplications().stream()
-                        .collect(toMap(Application::getName, a -> NO_SERVICE_TAGS, MERGE_FUNCTION, TreeMap::new)));
+    /**
+     * Waits for a change of any service and returns the change index of the catalog
+     */
+    public CompletableFuture<Long> getCatalogIndex(long waitMillis, Long index) {
+        long lastIndex = serviceChangeDetector.getLastEmitted();
+        return isBehind(index, lastIndex) ? CompletableFuture.completedFuture(lastIndex)
+                : serviceChangeDetector.getTotalIndex(index, waitMillis);
     }
 
-    public Single<ChangeItem<List<InstanceInfo>>> getService(String appName, long waitMillis, Long index) {
+    /**
+     * Returns the names of the services changed after the index with the index they are complete up to.
+     * The names are null if the changes since the index are unknown.
+     */
+    public ChangeItem<Set<String>> getServicesChangedSince(Long index) {
+        return index == null ? new ChangeItem<>(null, serviceChangeDetector.getLastEmitted())
+                : serviceChangeDetector.getChangedSince(index);
+    }
 
-        return returnDeferred(waitMillis, index, () -> serviceChangeDetector.getLastEmittedOfApp(appName),
-                waitMillisInternal -> serviceChangeDetector.getIndexOfApp(appName, waitMillisInternal),
-                () -> {
-                    Application application = registry.getApplication(appName);
-                    if (application == null) {
-                        return Collections.emptyList();
-                    } else {
-                        return new ArrayList<>(application.getInstances());
-                    }
-                });
+    public Set<String> getAllServiceNames() {
+        return registry.getServiceNames().keySet();
     }
 
-    private <T> Single<ChangeItem<T>> returnDeferred(long waitMillis, Long index,
-                                                     Supplier<Long> lastEmitted, Function<Long, Observable<Long>> supplyObservable,
-                                                     Supplier<T> fn) {
-        MultiValueMap<String, String> headers = new LinkedMultiValueMap<>();
-        if (index == null || !lastEmitted.get().equals(index)) {
-            return Single.just(new ChangeItem<>(fn.get(), lastEmitted.get()));
+    public List<InstanceInfo> getInstances(String appName) {
+        Application application = registry.getApplication(appName);
+        if (application == null) {
+            return Collections.emptyList();
         } else {
-            return supplyObservable.apply(waitMillis)
-                    .map(idx -> new ChangeItem<>(fn.get(), idx))
-                    .first()
-                    .toSingle();
+            return new ArrayList<>(application.getInstances());
         }
     }
+
+    /**
+     * A client without index or with an index that differs from the last change gets the change index at once,
+     * otherwise it waits for a change. The data is read after the index, so that it is never older than the index
+     * returned to the client. A client index from before a restart of the registry is answered at once as well.
+     */
+    private static boolean isBehind(Long index, long lastIndex) {
+        return index == null || index != lastIndex;
+    }
+
+    /**
+     * Maps the result of a blocking query, cancelling the mapped future stops the query from waiting
+     */
+    private static <T, R> CompletableFuture<R> map(CompletableFuture<T> query, Function<? super T, ? extends R> fn) {
+        CompletableFuture<R> mapped = query.thenApply(fn);
+        mapped.whenComplete((result, error) -> query.cancel(false));
+        return mapped;
+    }
 }
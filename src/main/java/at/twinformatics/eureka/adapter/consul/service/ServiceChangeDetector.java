@@ -22,94 +22,553 @@
  */
 package at.twinformatics.eureka.adapter.consul.service;
 
-import lombok.AllArgsConstructor;
-import lombok.Getter;
+import at.twinformatics.eureka.adapter.consul.model.ChangeItem;
+import io.micrometer.core.instrument.Metrics;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
-import rx.Observable;
-import rx.subjects.PublishSubject;
+import org.springframework.util.Assert;
 
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
+import javax.annotation.PreDestroy;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import static java.lang.Boolean.FALSE;
+import static java.lang.Boolean.TRUE;
 
 @Component
 @Slf4j
 public class ServiceChangeDetector {
 
-    private static final long INITIAL_VALUE = 1L;
+    // blocking queries wait for seconds to minutes, their expiry does not need to be more precise
+    private static final long TIMER_TICK_MILLIS = 100;
+    private static final int DEFAULT_CHANGE_LOG_SIZE = 4096;
+    // publishes a change with the next index of the global sequence
+    private static final long NEXT_INDEX = Long.MIN_VALUE;
+
+    @Value("${eurekaConsulAdapter.changeCoalesceMillis:0}")
+    private long changeCoalesceMillis;
+
+    @Value("${eurekaConsulAdapter.wakeupSpreadMillis:0}")
+    private long wakeupSpreadMillis;
+
+    @Value("${eurekaConsulAdapter.wakeupSpreadThreshold:100}")
+    private int wakeupSpreadThreshold;
+
+    // catalog-wide waiters are notified about every change
+    private final Set<Waiter> waiters = ConcurrentHashMap.newKeySet();
+    // waiters of a single app are only notified about changes of this app
+    private final ConcurrentMap<String, Set<Waiter>> appWaiters = new ConcurrentHashMap<>();
+    // seeded from the clock, so that the index of a restarted adapter is ahead of the indexes clients kept from
+    // the previous process, as long as it published less than one change per millisecond on average
+    private volatile long initialIndex = System.currentTimeMillis();
+    private final ConcurrentMap<String, AtomicLong> changeCounters = new ConcurrentHashMap<>();
+    // highest change counter of all apps, maintained on publish so that reading it does not scan all apps.
+    // Only advanced after the change is in the change log, so a client never gets an index whose change it misses.
+    private final AtomicLong lastEmitted = new AtomicLong(initialIndex);
+    // the last published changes, so that clients can ask which apps changed since their index.
+    // Guarded by its lock, which also assigns the indexes, so the log holds every index up to lastEmitted.
+    private ChangeLog changeLog = new ChangeLog(DEFAULT_CHANGE_LOG_SIZE, initialIndex);
+    private final Object changeLogLock = new Object();
+
+    // apps with an open coalescing window, TRUE if a change arrived within the window
+    private final ConcurrentMap<String, Boolean> coalescingWindows = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService coalescingScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "eureka-consul-adapter-coalescing");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // in virtual thread mode, each blocking query parks its own thread on the condition of its app or the catalog
+    private final ConcurrentMap<String, ChangeCondition> appConditions = new ConcurrentHashMap<>();
+    private final ChangeCondition catalogCondition = new ChangeCondition();
+    private ExecutorService parkingExecutor;
 
-    private final PublishSubject<ServiceChange> eventStream = PublishSubject.create();
-    private final Map<String, AtomicLong> changeCounters = Collections.synchronizedMap(new HashMap<>());
+    private final BlockingQueryTimer timer = new BlockingQueryTimer(TIMER_TICK_MILLIS);
+    // the timer only hands over its tasks, queries complete here because completing a query builds its response
+    private final ExecutorService completionExecutor = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), r -> {
+                Thread thread = new Thread(r, "eureka-consul-adapter-completion");
+                thread.setDaemon(true);
+                return thread;
+            });
+    private final LongAdder receivedChanges = new LongAdder();
+    private final LongAdder emittedChanges = new LongAdder();
 
-    public void publish(String appName, long timestamp) {
+    private BlockingQueryMetrics blockingQueryMetrics = new BlockingQueryMetrics(Metrics.globalRegistry);
 
-        ServiceChange change = new ServiceChange(appName, timestamp);
+    /**
+     * Publishes a change of the app with the next index of a global sequence, so that no two changes
+     * share an index and the index never moves backwards.
+     * If a coalescing window is configured, the first change of an app is published at once and all further
+     * changes within the window are published as one change when the window closes.
+     */
+    public void publish(String appName) {
+        receivedChanges.increment();
+        if (changeCoalesceMillis <= 0) {
+            publish(appName, NEXT_INDEX);
+            return;
+        }
+
+        Boolean window = coalescingWindows.compute(appName, (name, pending) -> pending == null ? FALSE : TRUE);
+        if (FALSE.equals(window)) {
+            publish(appName, NEXT_INDEX);
+            scheduleWindowClose(appName);
+        } else if (log.isDebugEnabled()) {
+            log.debug("Coalescing change of app {}", appName);
+        }
+    }
+
+    /**
+     * Publishes a change of the app with the given index. Clients that already got a higher index miss the change
+     * in the change log, so the index should be the next one of the sequence (e.g. in tests).
+     */
+    public void publish(String appName, long index) {
+        emittedChanges.increment();
+        long publishedNanos = System.nanoTime();
 
         if (log.isDebugEnabled()) {
-            log.debug("Incrementing change counter: appname {}, value {}",
-                    change.getName(), changeCounters.get(change.getName()));
+            log.debug("Incrementing change counter: appname {}, value {}", appName, changeCounters.get(appName));
+        }
+
+        synchronized (changeLogLock) {
+            long changeIndex = index == NEXT_INDEX ? lastEmitted.get() + 1 : index;
+            // concurrent changes of the same app may arrive out of order, keep the highest index
+            getChangeCounter(appName).accumulateAndGet(changeIndex, Math::max);
+            changeLog.append(appName, changeIndex);
+            lastEmitted.accumulateAndGet(changeIndex, Math::max);
         }
 
-        changeCounters.computeIfAbsent(change.getName(), x -> new AtomicLong(INITIAL_VALUE))
-                .set(change.getTimestamp());
+        Set<Waiter> waitersOfApp = appWaiters.get(appName);
+        if (waitersOfApp != null) {
+            notifyWaiters(waitersOfApp, publishedNanos);
+        }
+        notifyWaiters(waiters, publishedNanos);
 
-        eventStream.onNext(change);
+        ChangeCondition conditionOfApp = appConditions.get(appName);
+        if (conditionOfApp != null) {
+            conditionOfApp.signal(publishedNanos);
+        }
+        catalogCondition.signal(publishedNanos);
     }
 
-    public Observable<Long> getIndexOfApp(String appName, long millis) {
-        // waits for change of app A or x seconds
-        return eventStream
-                .filter(se -> se.getName().equals(appName))
-                .timeout(millis, TimeUnit.MILLISECONDS)
-                .onErrorReturn(err -> mapTimeoutToServiceChange(err, appName))
-                .map(se -> getLastEmittedOfApp(se.getName()));
+    /**
+     * Waits for a change of the app after the given index and returns the index of the app.
+     * Returns the unchanged index when the wait time passed. Cancelling the future stops waiting.
+     */
+    public CompletableFuture<Long> getIndexOfApp(String appName, long index, long millis) {
+        if (parkingExecutor != null) {
+            // counted before the index is checked, so a publisher that changed the index afterwards signals
+            ChangeCondition conditionOfApp = appConditions.compute(appName, (name, condition) -> {
+                ChangeCondition counted = condition == null ? new ChangeCondition() : condition;
+                counted.parked.incrementAndGet();
+                return counted;
+            });
+            CompletableFuture<Long> future = parkOnVirtualThread(conditionOfApp, index,
+                    () -> getLastEmittedOfApp(appName), millis);
+            // conditions are removed with their last parked query, so names nobody waits for are not kept
+            future.whenComplete((changeIndex, error) -> appConditions.computeIfPresent(appName, (name, condition) ->
+                    condition.parked.decrementAndGet() == 0 ? null : condition));
+            return future;
+        }
+        // the waiter is added within compute, so it cannot end up in a set that is being removed
+        Waiter waiter = new Waiter(() -> getLastEmittedOfApp(appName));
+        appWaiters.compute(appName, (name, waitersOfApp) -> {
+            Set<Waiter> added = waitersOfApp == null ? ConcurrentHashMap.newKeySet() : waitersOfApp;
+            added.add(waiter);
+            return added;
+        });
+        // waiter sets are removed with their last waiter, so names nobody waits for are not kept
+        return await(waiter, index, millis, () -> appWaiters.computeIfPresent(appName, (name, waitersOfApp) ->
+                waitersOfApp.remove(waiter) && waitersOfApp.isEmpty() ? null : waitersOfApp));
     }
 
-    public Observable<Long> getTotalIndex(long millis) {
-        // waits for change or x seconds
-        return eventStream
-                .timeout(millis, TimeUnit.MILLISECONDS)
-                .onErrorReturn(err -> mapTimeoutToServiceChange(err, ""))
-                .map(se -> getLastEmitted());
+    /**
+     * Waits for a change of any app after the given index and returns the highest index of all apps.
+     * Returns the unchanged index when the wait time passed. Cancelling the future stops waiting.
+     */
+    public CompletableFuture<Long> getTotalIndex(long index, long millis) {
+        if (parkingExecutor != null) {
+            // counted before the index is checked, so a publisher that changed the index afterwards signals
+            catalogCondition.parked.incrementAndGet();
+            CompletableFuture<Long> future = parkOnVirtualThread(catalogCondition, index, this::getLastEmitted,
+                    millis);
+            future.whenComplete((changeIndex, error) -> catalogCondition.parked.decrementAndGet());
+            return future;
+        }
+        Waiter waiter = new Waiter(this::getLastEmitted);
+        waiters.add(waiter);
+        return await(waiter, index, millis, () -> waiters.remove(waiter));
     }
 
-    public Long getLastEmitted() {
+    public long getLastEmitted() {
         // get highest change counter of all apps
-        Long lastEmitted = changeCounters.values().stream().mapToLong(AtomicLong::get).max().orElse(INITIAL_VALUE);
+        long lastEmittedOfAll = lastEmitted.get();
         if (log.isDebugEnabled()) {
-            log.debug("Last emitted change counter of services {}", lastEmitted);
+            log.debug("Last emitted change counter of services {}", lastEmittedOfAll);
         }
-        return lastEmitted;
+        return lastEmittedOfAll;
     }
 
-    public Long getLastEmittedOfApp(String appName) {
+    public long getLastEmittedOfApp(String appName) {
         // get change counter of app A
-        long lastEmittedOfApp = changeCounters.getOrDefault(appName, new AtomicLong(INITIAL_VALUE)).longValue();
+        AtomicLong changeCounter = changeCounters.get(appName);
+        long lastEmittedOfApp = changeCounter == null ? initialIndex : changeCounter.get();
         if (log.isDebugEnabled()) {
             log.debug("Last emitted change counter of service {}: {}", appName, lastEmittedOfApp);
         }
         return lastEmittedOfApp;
     }
 
-    public void reset() {
+    /**
+     * Returns the apps that changed after the given index with the index they are complete up to. The apps are
+     * null if the change log does not reach back to the index or the index is newer than the last change
+     * (e.g. from before a restart), then all apps have to be considered changed.
+     */
+    public ChangeItem<Set<String>> getChangedSince(long index) {
+        synchronized (changeLogLock) {
+            long lastIndex = lastEmitted.get();
+            return new ChangeItem<>(index > lastIndex ? null : changeLog.changedSince(index), lastIndex);
+        }
+    }
+
+    public long getReceivedChanges() {
+        return receivedChanges.sum();
+    }
+
+    public long getEmittedChanges() {
+        return emittedChanges.sum();
+    }
+
+    @Autowired(required = false)
+    public void setBlockingQueryMetrics(BlockingQueryMetrics blockingQueryMetrics) {
+        this.blockingQueryMetrics = blockingQueryMetrics;
+        blockingQueryMetrics.registerChangeCounters(this);
+        blockingQueryMetrics.registerTimer(timer);
+    }
+
+    /**
+     * Parks each blocking query on a virtual thread instead of registering a callback, requires Java 21 or later
+     */
+    @Value("${eurekaConsulAdapter.virtualThreads:false}")
+    public void setVirtualThreads(boolean virtualThreads) {
+        setParkingExecutor(virtualThreads ? VirtualThreads.newVirtualThreadPerTaskExecutor() : null);
+    }
+
+    /**
+     * Parks each blocking query on a thread of the executor, e.g. on platform threads in tests that run before
+     * Java 21. Null registers callbacks instead.
+     */
+    void setParkingExecutor(ExecutorService executor) {
+        if (parkingExecutor != null) {
+            parkingExecutor.shutdownNow();
+        }
+        parkingExecutor = executor;
+    }
+
+    /**
+     * Apps with blocking queries currently waiting for their changes
+     */
+    Set<String> getWaitedApps() {
+        Set<String> waited = new HashSet<>(appWaiters.keySet());
+        waited.addAll(appConditions.keySet());
+        return waited;
+    }
+
+    /**
+     * Blocking queries currently parked on virtual threads
+     */
+    int getParkedThreads() {
+        int parked = catalogCondition.awaiting.get();
+        for (ChangeCondition condition : appConditions.values()) {
+            parked += condition.awaiting.get();
+        }
+        return parked;
+    }
+
+    public void setChangeCoalesceMillis(long changeCoalesceMillis) {
+        this.changeCoalesceMillis = changeCoalesceMillis;
+    }
+
+    @Value("${eurekaConsulAdapter.changeLogSize:" + DEFAULT_CHANGE_LOG_SIZE + "}")
+    public void setChangeLogSize(int changeLogSize) {
+        Assert.isTrue(changeLogSize > 0, "change log size must be positive");
+        synchronized (changeLogLock) {
+            // changes before the new log are unknown to it
+            changeLog = new ChangeLog(changeLogSize, lastEmitted.get());
+        }
+    }
+
+    public void setWakeupSpreadMillis(long wakeupSpreadMillis) {
+        this.wakeupSpreadMillis = wakeupSpreadMillis;
+    }
+
+    public void setWakeupSpreadThreshold(int wakeupSpreadThreshold) {
+        this.wakeupSpreadThreshold = wakeupSpreadThreshold;
+    }
+
+    /**
+     * Runs the task after the given delay, timed by the timer of the blocking queries and run by the executor that
+     * completes them
+     */
+    BlockingQueryTimer.Timeout schedule(Runnable task, long delayMillis) {
+        return timer.schedule(() -> completionExecutor.execute(task), delayMillis);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        coalescingScheduler.shutdownNow();
+        timer.stop();
+        completionExecutor.shutdownNow();
+        if (parkingExecutor != null) {
+            parkingExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Forgets all changes and starts again from the given index
+     */
+    public void reset(long initialIndex) {
+        this.initialIndex = initialIndex;
         changeCounters.clear();
+        coalescingWindows.clear();
+        synchronized (changeLogLock) {
+            lastEmitted.set(initialIndex);
+            changeLog = new ChangeLog(changeLog.capacity(), initialIndex);
+        }
+    }
+
+    private void notifyWaiters(Set<Waiter> waiters, long publishedNanos) {
+        // many waiters are woken up at random times within the spread window, so that their clients do not
+        // all come back at the same instant
+        if (isSpreadingWakeups(waiters.size())) {
+            for (Waiter waiter : waiters) {
+                if (waiter.markWakeupScheduled()) {
+                    schedule(() -> wakeUp(waiter, publishedNanos), getWakeupDelayMillis());
+                }
+            }
+        } else {
+            for (Waiter waiter : waiters) {
+                wakeUp(waiter, publishedNanos);
+            }
+        }
+    }
+
+    private void wakeUp(Waiter waiter, long publishedNanos) {
+        if (waiter.complete()) {
+            blockingQueryMetrics.recordChangePropagation(publishedNanos);
+        }
+    }
+
+    private boolean isSpreadingWakeups(int waiters) {
+        return wakeupSpreadMillis > 0 && waiters >= wakeupSpreadThreshold;
     }
 
-    private ServiceChange mapTimeoutToServiceChange(Throwable err, String appName){
-        if (err instanceof TimeoutException) {
-            return new ServiceChange(appName, -1);
+    private long getWakeupDelayMillis() {
+        return ThreadLocalRandom.current().nextLong(wakeupSpreadMillis);
+    }
+
+    private AtomicLong getChangeCounter(String appName) {
+        // computeIfAbsent locks the bin even if the key is present on Java 8, so look it up first
+        AtomicLong changeCounter = changeCounters.get(appName);
+        if (changeCounter == null) {
+            changeCounter = changeCounters.computeIfAbsent(appName, x -> new AtomicLong(initialIndex));
+        }
+        return changeCounter;
+    }
+
+    private void scheduleWindowClose(String appName) {
+        coalescingScheduler.schedule(() -> closeWindow(appName), changeCoalesceMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void closeWindow(String appName) {
+        // keeps the window open for another period if changes arrived, otherwise removes it
+        Boolean window = coalescingWindows.computeIfPresent(appName, (name, pending) -> pending ? FALSE : null);
+        if (window != null) {
+            publish(appName, NEXT_INDEX);
+            scheduleWindowClose(appName);
+        }
+    }
+
+    /**
+     * Waits with a registered waiter that completes on the next change or when the wait time passed. A waiter only
+     * completes once, so slow waiters do not buffer changes and the publisher never waits for them.
+     */
+    private CompletableFuture<Long> await(Waiter waiter, long index, long millis, Runnable unregister) {
+        CompletableFuture<Long> future = waiter.future;
+        // checked after registering the waiter, so a change published after the caller read the index is not missed
+        if (waiter.lastEmitted.getAsLong() > index) {
+            waiter.complete();
+        } else {
+            BlockingQueryTimer.Timeout timeout = schedule(waiter::complete, millis);
+            future.whenComplete((changeIndex, error) -> timeout.cancel());
         }
-        throw new RuntimeException(err.getMessage(), err);
+        future.whenComplete((changeIndex, error) -> unregister.run());
+        return future;
+    }
+
+    /**
+     * Parks the blocking query on a virtual thread until the condition signals a change after the given index or
+     * the wait time passed. Cancelling the future interrupts the parked thread.
+     */
+    private CompletableFuture<Long> parkOnVirtualThread(ChangeCondition condition, long index,
+                                                        LongSupplier lastEmitted, long millis) {
+        CompletableFuture<Long> future = new CompletableFuture<>();
+        Future<?> thread = parkingExecutor.submit(() -> {
+            try {
+                future.complete(condition.await(index, lastEmitted, millis));
+            } catch (InterruptedException e) {
+                future.cancel(false);
+            } catch (RuntimeException e) {
+                future.completeExceptionally(e);
+            }
+        });
+        future.whenComplete((changeIndex, error) -> thread.cancel(true));
+        return future;
     }
 
-    @AllArgsConstructor
-    @Getter
-    private static class ServiceChange {
-        private String name;
-        private long timestamp;
+    /**
+     * Lock and condition instead of a monitor, because a virtual thread waiting on a monitor pins its carrier thread
+     */
+    private class ChangeCondition {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+        // counted by the detector from before the index is checked until the query returned
+        private final AtomicInteger parked = new AtomicInteger();
+        // threads actually waiting on the condition
+        private final AtomicInteger awaiting = new AtomicInteger();
+        private volatile long publishedNanos;
+        private volatile boolean spreadingWakeups;
+
+        private long await(long index, LongSupplier lastEmitted, long millis) throws InterruptedException {
+            long changeIndex;
+            boolean wokenUpByChange;
+            lock.lock();
+            try {
+                long remainingNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+                boolean waited = false;
+                awaiting.incrementAndGet();
+                try {
+                    while ((changeIndex = lastEmitted.getAsLong()) <= index && remainingNanos > 0) {
+                        remainingNanos = changed.awaitNanos(remainingNanos);
+                        waited = true;
+                    }
+                } finally {
+                    awaiting.decrementAndGet();
+                }
+                wokenUpByChange = waited && changeIndex > index;
+            } finally {
+                lock.unlock();
+            }
+
+            if (wokenUpByChange) {
+                long nanos = publishedNanos;
+                if (spreadingWakeups && wakeupSpreadMillis > 0) {
+                    TimeUnit.MILLISECONDS.sleep(getWakeupDelayMillis());
+                    changeIndex = lastEmitted.getAsLong();
+                }
+                blockingQueryMetrics.recordChangePropagation(nanos);
+            }
+            return changeIndex;
+        }
+
+        private void signal(long publishedNanos) {
+            if (parked.get() == 0) {
+                return;
+            }
+            lock.lock();
+            try {
+                this.publishedNanos = publishedNanos;
+                this.spreadingWakeups = isSpreadingWakeups(parked.get());
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Ring buffer of the last published changes. Changes are rare compared to queries, so a lock is cheap here.
+     * Not thread-safe, guarded by the lock of the change log.
+     */
+    private static class ChangeLog {
+        private final long[] indexes;
+        private final String[] appNames;
+        private int next;
+        private int size;
+        // highest index of all changes that are not in the log anymore
+        private long evictedIndex;
+
+        private ChangeLog(int capacity, long evictedIndex) {
+            this.indexes = new long[capacity];
+            this.appNames = new String[capacity];
+            this.evictedIndex = evictedIndex;
+        }
+
+        private void append(String appName, long index) {
+            if (size == indexes.length) {
+                evictedIndex = Math.max(evictedIndex, indexes[next]);
+            } else {
+                size++;
+            }
+            indexes[next] = index;
+            appNames[next] = appName;
+            next = (next + 1) % indexes.length;
+        }
+
+        private Set<String> changedSince(long index) {
+            if (evictedIndex > index) {
+                return null;
+            }
+            Set<String> changed = new HashSet<>();
+            for (int i = 0; i < size; i++) {
+                if (indexes[i] > index) {
+                    changed.add(appNames[i]);
+                }
+            }
+            return changed;
+        }
+
+        private int capacity() {
+            return indexes.length;
+        }
+    }
+
+    private static class Waiter {
+        private final CompletableFuture<Long> future = new CompletableFuture<>();
+        private final LongSupplier lastEmitted;
+        private final AtomicBoolean wakeupScheduled = new AtomicBoolean();
+
+        private Waiter(LongSupplier lastEmitted) {
+            this.lastEmitted = lastEmitted;
+        }
+
+        /**
+         * Returns true only for the first change, later changes within the spread window wake the waiter up
+         * with the same scheduled wakeup
+         */
+        private boolean markWakeupScheduled() {
+            return wakeupScheduled.compareAndSet(false, true);
+        }
+
+        private boolean complete() {
+            return !future.isDone() && future.complete(lastEmitted.getAsLong());
+        }
     }
 }
@@ -0,0 +1,188 @@
+/**
+ * The MIT License
+ * Copyright © 2018 Twinformatics GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package at.twinformatics.eureka.adapter.consul.service;
+
+import at.twinformatics.eureka.adapter.consul.mapper.InstanceInfoMapper;
+import at.twinformatics.eureka.adapter.consul.model.IndexedInstance;
+import com.netflix.appinfo.InstanceInfo;
+import com.netflix.appinfo.InstanceInfo.InstanceStatus;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Predicate;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Indexes the instances of each service by their node metadata and status, so that filtered queries only map
+ * and encode the instances they return. The index of a service is only rebuilt when its change index moves.
+ * Compiled filter expressions are cached, as clients send the same filter with each blocking query.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class ServiceInstanceIndex {
+
+    // distinct filters are expected to be few (e.g. one per Prometheus shard), this only bounds misuse
+    private static final int MAX_COMPILED_FILTERS = 1024;
+
+    private final RegistrationService registrationService;
+    private final InstanceInfoMapper instanceInfoMapper;
+
+    private final ConcurrentMap<String, IndexedService> services = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Predicate<IndexedInstance>> compiledFilters = new ConcurrentHashMap<>();
+
+    /**
+     * Validates and compiles the query parameters
+     *
+     * @param filter   filter expression, e.g. {@code ServiceMeta.version == "1.0"}
+     * @param tags     service tags an instance must have
+     * @param nodeMeta node metadata an instance must have, each as {@code key:value}
+     * @param passing  only instances that are UP
+     */
+    public InstanceFilter createFilter(String filter, List<String> tags, List<String> nodeMeta, boolean passing) {
+        boolean noFilter = filter == null || filter.trim().isEmpty();
+        boolean noTags = tags == null || tags.isEmpty();
+        boolean noNodeMeta = nodeMeta == null || nodeMeta.isEmpty();
+        if (noFilter && noTags && noNodeMeta) {
+            return passing ? InstanceFilter.PASSING : InstanceFilter.NONE;
+        }
+        return new InstanceFilter(noFilter ? null : compile(filter),
+                noTags ? Collections.emptyList() : tags,
+                noNodeMeta ? Collections.emptyMap() : parseNodeMeta(nodeMeta),
+                passing);
+    }
+
+    public List<InstanceInfo> getInstances(String appName, long changeIndex, InstanceFilter filter) {
+        IndexedService service = getIndexedService(appName, changeIndex);
+        if (filter.isPassingOnly()) {
+            return Collections.unmodifiableList(service.upInstances);
+        }
+        return selectCandidates(service, filter).stream()
+                .filter(filter::test)
+                .map(IndexedInstance::getInstanceInfo)
+                .collect(toList());
+    }
+
+    public void reset() {
+        services.clear();
+        compiledFilters.clear();
+    }
+
+    private Predicate<IndexedInstance> compile(String filter) {
+        Predicate<IndexedInstance> compiled = compiledFilters.get(filter);
+        if (compiled == null) {
+            compiled = FilterExpressionParser.parse(filter);
+            if (compiledFilters.size() >= MAX_COMPILED_FILTERS) {
+                compiledFilters.clear();
+            }
+            compiledFilters.putIfAbsent(filter, compiled);
+        }
+        return compiled;
+    }
+
+    private Map<String, String> parseNodeMeta(List<String> nodeMeta) {
+        Map<String, String> parsed = new LinkedHashMap<>();
+        for (String entry : nodeMeta) {
+            int separator = entry.indexOf(':');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Invalid node-meta '" + entry + "', expected key:value");
+            }
+            parsed.put(entry.substring(0, separator), entry.substring(separator + 1));
+        }
+        return parsed;
+    }
+
+    /**
+     * Starts with the instances of the rarest requested node metadata, the others are checked by the filter
+     */
+    private List<IndexedInstance> selectCandidates(IndexedService service, InstanceFilter filter) {
+        List<IndexedInstance> candidates = filter.isPassing() ? service.indexedUpInstances : service.instances;
+        for (Map.Entry<String, String> entry : filter.getNodeMeta().entrySet()) {
+            List<IndexedInstance> matching = service.byNodeMeta.getOrDefault(
+                    nodeMetaKey(entry.getKey(), entry.getValue()), Collections.emptyList());
+            if (matching.size() < candidates.size()) {
+                candidates = matching;
+            }
+        }
+        return candidates;
+    }
+
+    private IndexedService getIndexedService(String appName, long changeIndex) {
+        IndexedService service = services.get(appName);
+        if (service != null && service.changeIndex == changeIndex) {
+            return service;
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Rebuilding instance index of service {} for change index {}", appName, changeIndex);
+        }
+
+        IndexedService rebuilt = new IndexedService(changeIndex, registrationService.getInstances(appName).stream()
+                .map(instanceInfoMapper::index)
+                .collect(toList()));
+        if (rebuilt.instances.isEmpty()) {
+            // unknown or removed services are not kept, so requests for arbitrary names do not fill the index
+            services.remove(appName);
+            return rebuilt;
+        }
+        // never replace an index of a newer change index by a slower request
+        services.merge(appName, rebuilt, (current, candidate) ->
+                current.changeIndex > candidate.changeIndex ? current : candidate);
+        return rebuilt;
+    }
+
+    private static String nodeMetaKey(String key, String value) {
+        return key + ':' + value;
+    }
+
+    private static class IndexedService {
+        private final long changeIndex;
+        private final List<IndexedInstance> instances;
+        private final List<IndexedInstance> indexedUpInstances = new ArrayList<>();
+        private final List<InstanceInfo> upInstances = new ArrayList<>();
+        private final Map<String, List<IndexedInstance>> byNodeMeta = new HashMap<>();
+
+        private IndexedService(long changeIndex, List<IndexedInstance> instances) {
+            this.changeIndex = changeIndex;
+            this.instances = instances;
+            for (IndexedInstance instance : instances) {
+                if (instance.getInstanceInfo().getStatus() == InstanceStatus.UP) {
+                    indexedUpInstances.add(instance);
+                    upInstances.add(instance.getInstanceInfo());
+                }
+                instance.getNodeMeta().forEach((key, value) ->
+                        byNodeMeta.computeIfAbsent(nodeMetaKey(key, value), k -> new ArrayList<>()).add(instance));
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * The MIT License
+ * Copyright © 2018 Twinformatics GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package at.twinformatics.eureka.adapter.consul.service;
+
+import at.twinformatics.eureka.adapter.consul.model.ServiceSnapshot;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * Caches the encoded response bodies of each service per view (e.g. catalog or health).
+ * A snapshot is only rebuilt when the change index of the service moves.
+ */
+@Component
+@Slf4j
+public class ServiceSnapshotCache {
+
+    private final ConcurrentMap<String, ConcurrentMap<String, ServiceSnapshot>> views = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the snapshot of the service for the change index, or null if it has not been built yet
+     */
+    public ServiceSnapshot getSnapshot(String view, String appName, long changeIndex) {
+        ConcurrentMap<String, ServiceSnapshot> snapshots = views.get(view);
+        ServiceSnapshot snapshot = snapshots == null ? null : snapshots.get(appName);
+        return snapshot != null && snapshot.getChangeIndex() == changeIndex ? snapshot : null;
+    }
+
+    public ServiceSnapshot getSnapshot(String view, String appName, long changeIndex, Supplier<byte[]> bodySupplier) {
+        ConcurrentMap<String, ServiceSnapshot> snapshots = views.computeIfAbsent(view, v -> new ConcurrentHashMap<>());
+        ServiceSnapshot snapshot = snapshots.get(appName);
+        if (snapshot != null && snapshot.getChangeIndex() == changeIndex) {
+            return snapshot;
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Rebuilding {} snapshot of service {} for change index {}", view, appName, changeIndex);
+        }
+
+        ServiceSnapshot rebuilt = new ServiceSnapshot(changeIndex, bodySupplier.get());
+        // never replace a snapshot of a newer change index by a slower request
+        snapshots.merge(appName, rebuilt, (current, candidate) ->
+                current.getChangeIndex() > candidate.getChangeIndex() ? current : candidate);
+        return rebuilt;
+    }
+
+    /**
+     * Removes the snapshots of the service from all views, e.g. when it has no instances anymore
+     */
+    public void remove(String appName) {
+        for (ConcurrentMap<String, ServiceSnapshot> snapshots : views.values()) {
+            snapshots.remove(appName);
+        }
+    }
+
+    public void reset() {
+        views.clear();
+    }
+}
@@ -25,13 +25,20 @@ package at.twinformatics.eureka.adapter.consul.controller;
 import at.twinformatics.eureka.adapter.consul.mapper.MetadataMapper;
 import at.twinformatics.eureka.adapter.consul.mapper.NodeMetadataMapper;
 import at.twinformatics.eureka.adapter.consul.mapper.ServiceMetadataMapper;
+import at.twinformatics.eureka.adapter.consul.service.BlockingQueryMetrics;
+import at.twinformatics.eureka.adapter.consul.service.BlockingQueryRateLimiter;
+import at.twinformatics.eureka.adapter.consul.service.RegistrationEventInstanceRegistry;
 import at.twinformatics.eureka.adapter.consul.service.RegistrationService;
 import at.twinformatics.eureka.adapter.consul.service.ServiceChangeDetector;
+import at.twinformatics.eureka.adapter.consul.service.ServiceInstanceIndex;
+import at.twinformatics.eureka.adapter.consul.service.ServiceSnapshotCache;
 import at.twinformatics.eureka.adapter.consul.mapper.InstanceInfoMapper;
+import com.jayway.jsonpath.JsonPath;
 import com.netflix.appinfo.InstanceInfo;
 import com.netflix.discovery.shared.Application;
 import com.netflix.discovery.shared.Applications;
-import com.netflix.eureka.registry.PeerAwareInstanceRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import lombok.extern.slf4j.Slf4j;
 import net.minidev.json.JSONArray;
 import org.hamcrest.Matchers;
@@ -49,12 +56,19 @@ import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.MvcResult;
 import org.springframework.test.web.servlet.ResultActions;
 import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.util.StreamUtils;
 
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
 
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
@@ -66,17 +80,28 @@ import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.
 @Slf4j
 @RunWith(SpringRunner.class)
 @WebMvcTest(controllers = { ServiceController.class, ServiceChangeDetector.class, InstanceInfoMapper.class,
-                            RegistrationService.class, MetadataMapper.class })
+                            RegistrationService.class, MetadataMapper.class, ServiceSnapshotCache.class,
+                            BlockingQueryMetrics.class, ServiceInstanceIndex.class,
+                            BlockingQueryRateLimiter.class })
 public class ServiceControllerTest {
 
     private MockMvc mockMvc;
 
     @MockBean
-    private PeerAwareInstanceRegistry registry;
+    private RegistrationEventInstanceRegistry registry;
 
     @Autowired
     private ServiceChangeDetector serviceChangeDetector;
 
+    @Autowired
+    private ServiceSnapshotCache serviceSnapshotCache;
+
+    @Autowired
+    private ServiceInstanceIndex serviceInstanceIndex;
+
+    @Autowired
+    private BlockingQueryRateLimiter blockingQueryRateLimiter;
+
     @Autowired
     private ServiceController controller;
     
@@ -88,7 +113,10 @@ public class ServiceControllerTest {
     @Before
     public void setUp() {
         executorService1 = Executors.newSingleThreadExecutor();
-        serviceChangeDetector.reset();
+        serviceChangeDetector.reset(1);
+        serviceSnapshotCache.reset();
+        serviceInstanceIndex.reset();
+        blockingQueryRateLimiter.reset();
 
         mockMvc = MockMvcBuilders.standaloneSetup(controller).build();
     }
@@ -102,7 +130,7 @@ public class ServiceControllerTest {
     @Test
     public void services_noServices_emptyObj() throws Exception {
 
-        Mockito.when(registry.getApplications()).thenReturn(new Applications());
+        mockApplications(new Applications());
 
         performAsync("/v1/catalog/services?wait=1ms")
                 .andExpect(content().contentType("application/json;charset=UTF-8"))
@@ -113,7 +141,7 @@ public class ServiceControllerTest {
     public void services_1Service_serviceObj() throws Exception {
 
         Applications applications = mock2Applications();
-        Mockito.when(registry.getApplications()).thenReturn(applications);
+        mockApplications(applications);
 
         performAsync("/v1/catalog/services?wait=1ms")
                 .andExpect(content().contentType("application/json;charset=UTF-8"))
@@ -125,7 +153,7 @@ public class ServiceControllerTest {
     public void services_syncChangesToMs1_interruptOnChange() throws Exception {
 
         Applications applications = mock2Applications();
-        Mockito.when(registry.getApplications()).thenReturn(applications);
+        mockApplications(applications);
 
         performAsync("/v1/catalog/services?wait=1ms")
                 .andExpect(content().contentType("application/json;charset=UTF-8"))
@@ -156,6 +184,210 @@ public class ServiceControllerTest {
                 .andExpect(jsonPath("$.ms2", Matchers.is(new JSONArray())));
     }
 
+    @Test
+    public void services_changesWithinSameMillisecond_distinctIndexes() throws Exception {
+
+        Applications applications = mock2Applications();
+        mockApplications(applications);
+
+        serviceChangeDetector.publish("ms1");
+
+        performAsync("/v1/catalog/services?wait=1ms&index=1")
+                .andExpect(header().string("X-Consul-Index", "2"));
+
+        serviceChangeDetector.publish("ms1");
+        serviceChangeDetector.publish("ms2");
+
+        performAsync("/v1/catalog/services?wait=1ms&index=2")
+                .andExpect(header().string("X-Consul-Index", "4"));
+
+        performAsync("/v1/catalog/service/ms1?wait=1ms&index=2")
+                .andExpect(header().string("X-Consul-Index", "3"));
+    }
+
+    @Test(timeout = 10000)
+    public void services_changesWithinCoalescingWindow_coalescedToOneChange() throws Exception {
+
+        Applications applications = mock2Applications();
+        mockApplications(applications);
+
+        long receivedChanges = serviceChangeDetector.getReceivedChanges();
+        long emittedChanges = serviceChangeDetector.getEmittedChanges();
+        serviceChangeDetector.setChangeCoalesceMillis(500);
+        try {
+            serviceChangeDetector.publish("ms1");
+            serviceChangeDetector.publish("ms1");
+            serviceChangeDetector.publish("ms1");
+
+            performAsync("/v1/catalog/services?wait=1ms&index=1")
+                    .andExpect(header().string("X-Consul-Index", "2"));
+
+            performAsync("/v1/catalog/services?wait=5s&index=2")
+                    .andExpect(header().string("X-Consul-Index", "3"));
+        } finally {
+            serviceChangeDetector.setChangeCoalesceMillis(0);
+        }
+
+        Assert.assertThat(serviceChangeDetector.getReceivedChanges() - receivedChanges, Matchers.is(3L));
+        Assert.assertThat(serviceChangeDetector.getEmittedChanges() - emittedChanges, Matchers.is(2L));
+    }
+
+    @Test(timeout = 10000)
+    public void services_manyWaiters_wakeupsSpreadOverWindow() throws Exception {
+
+        Applications applications = mock2Applications();
+        mockApplications(applications);
+
+        serviceChangeDetector.setWakeupSpreadThreshold(1);
+        serviceChangeDetector.setWakeupSpreadMillis(1000);
+        try {
+            startThread(() -> {
+                sleepFor(500);
+                serviceChangeDetector.publish("ms1", 2);
+            });
+
+            performAsync("/v1/catalog/service/ms1?wait=30s&index=1")
+                    .andExpect(header().string("X-Consul-Index", "2"));
+
+            int waiters = 20;
+            long[] wakeups = new long[waiters];
+            CompletableFuture<?>[] queries = new CompletableFuture<?>[waiters];
+            for (int i = 0; i < waiters; i++) {
+                int waiter = i;
+                queries[i] = serviceChangeDetector.getIndexOfApp("ms1", 2, 30_000)
+                        .thenRun(() -> wakeups[waiter] = System.nanoTime());
+            }
+            long published = System.nanoTime();
+            serviceChangeDetector.publish("ms1", 3);
+            CompletableFuture.allOf(queries).get(5, TimeUnit.SECONDS);
+
+            // the chance that 20 random wakeups within one second all fall into 200 milliseconds is negligible
+            long first = Arrays.stream(wakeups).min().getAsLong();
+            long last = Arrays.stream(wakeups).max().getAsLong();
+            Assert.assertThat(TimeUnit.NANOSECONDS.toMillis(last - first), Matchers.greaterThan(200L));
+            Assert.assertThat(TimeUnit.NANOSECONDS.toMillis(last - published), Matchers.lessThan(1500L));
+        } finally {
+            serviceChangeDetector.setWakeupSpreadMillis(0);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void services_hugeWait_limitedToMaximum() throws Exception {
+
+        mockApplications(mock2Applications());
+
+        MvcResult mvcResult = this.mockMvc.perform(get("/v1/catalog/services?wait=922337203685477h&index=1"))
+                                          .andExpect(status().isOk())
+                                          .andReturn();
+        // 10 minutes, plus uniform jitter of up to 1/16 and the margin for building the response
+        Assert.assertThat(mvcResult.getRequest().getAsyncContext().getTimeout(), Matchers.allOf(
+                Matchers.greaterThanOrEqualTo(TimeUnit.MINUTES.toMillis(10)),
+                Matchers.lessThanOrEqualTo(TimeUnit.MINUTES.toMillis(11))));
+
+        serviceChangeDetector.publish("ms1", 2);
+
+        this.mockMvc.perform(asyncDispatch(mvcResult))
+                    .andExpect(header().string("X-Consul-Index", "2"));
+    }
+
+    @Test(timeout = 10000)
+    public void service_minReturnInterval_nextReturnHeldBack() throws Exception {
+
+        Applications applications = mock2Applications();
+        mockApplications(applications);
+
+        blockingQueryRateLimiter.setMinReturnIntervalMillis(1000);
+        try {
+            performAsync("/v1/catalog/service/ms1?wait=30s&index=5")
+                    .andExpect(header().string("X-Consul-Index", "1"));
+
+            long start = System.nanoTime();
+            performAsync("/v1/catalog/service/ms1?wait=30s&index=5")
+                    .andExpect(header().string("X-Consul-Index", "1"));
+            Assert.assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                    Matchers.greaterThanOrEqualTo(900L));
+
+            // other services of the client are not held back
+            start = System.nanoTime();
+            performAsync("/v1/catalog/service/ms2?wait=30s&index=5")
+                    .andExpect(header().string("X-Consul-Index", "1"));
+            Assert.assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                    Matchers.lessThan(900L));
+
+            // endpoints do not share the limit of a service with the same name
+            performAsync("/v1/adapter/changes?wait=30s&index=5")
+                    .andExpect(status().isOk());
+            start = System.nanoTime();
+            performAsync("/v1/catalog/service/changes?wait=30s&index=5")
+                    .andExpect(header().string("X-Consul-Index", "1"));
+            performAsync("/v1/catalog/services?wait=30s&index=5")
+                    .andExpect(header().string("X-Consul-Index", "1"));
+            Assert.assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                    Matchers.lessThan(900L));
+
+            // behind a proxy, clients are told apart by the configured header
+            controller.setClientAddressHeader("X-Forwarded-For");
+            start = System.nanoTime();
+            for (String client : new String[] { "10.0.0.1", "10.0.0.2, 192.168.0.1", "10.0.0.3" }) {
+                MvcResult mvcResult = this.mockMvc.perform(get("/v1/catalog/service/ms2?wait=30s&index=5")
+                                                                   .header("X-Forwarded-For", client))
+                                                  .andReturn();
+                this.mockMvc.perform(asyncDispatch(mvcResult))
+                            .andExpect(header().string("X-Consul-Index", "1"));
+            }
+            Assert.assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                    Matchers.lessThan(900L));
+        } finally {
+            blockingQueryRateLimiter.setMinReturnIntervalMillis(0);
+            controller.setClientAddressHeader(null);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void changes_sinceIndex_returnChangedServicesOnly() throws Exception {
+
+        Applications applications = mock2Applications();
+        mockApplications(applications);
+        InstanceInfo instance1 = mock1Instance();
+        applications.getRegisteredApplications("ms1").addInstance(instance1);
+        Mockito.when(registry.getApplication("ms1")).thenReturn(applications.getRegisteredApplications("ms1"));
+        Mockito.when(registry.getApplication("ms2")).thenReturn(applications.getRegisteredApplications("ms2"));
+
+        serviceChangeDetector.publish("ms1", 2);
+        serviceChangeDetector.publish("ms2", 3);
+
+        performAsync("/v1/adapter/changes?wait=1ms&index=2")
+                .andExpect(header().string("X-Consul-Index", "3"))
+                .andExpect(jsonPath("$.Full", Matchers.is(false)))
+                .andExpect(jsonPath("$.Services.ms2", Matchers.is(new JSONArray())))
+                .andExpect(jsonPath("$.Services.ms1").doesNotExist());
+
+        performAsync("/v1/adapter/changes?wait=1ms&index=1")
+                .andExpect(jsonPath("$.Full", Matchers.is(false)))
+                .andExpect(jsonPath("$.Services.ms1[0].ServiceID", Matchers.is("1")))
+                .andExpect(jsonPath("$.Services.ms2", Matchers.is(new JSONArray())));
+
+        // clients without index or with an index the change log does not know get all services
+        performAsync("/v1/adapter/changes?wait=1ms")
+                .andExpect(jsonPath("$.Full", Matchers.is(true)))
+                .andExpect(jsonPath("$.Services.ms1[0].ServiceID", Matchers.is("1")));
+        performAsync("/v1/adapter/changes?wait=1ms&index=7")
+                .andExpect(jsonPath("$.Full", Matchers.is(true)));
+
+        serviceChangeDetector.setChangeLogSize(1);
+        try {
+            serviceChangeDetector.publish("ms1", 4);
+            serviceChangeDetector.publish("ms2", 5);
+            performAsync("/v1/adapter/changes?wait=1ms&index=4")
+                    .andExpect(jsonPath("$.Full", Matchers.is(false)))
+                    .andExpect(jsonPath("$.Services.ms1").doesNotExist());
+            performAsync("/v1/adapter/changes?wait=1ms&index=3")
+                    .andExpect(jsonPath("$.Full", Matchers.is(true)));
+        } finally {
+            serviceChangeDetector.setChangeLogSize(4096);
+        }
+    }
+
     private ResultActions performAsync(String url) throws Exception {
         MvcResult mvcResult = this.mockMvc.perform(get(url))
                                           .andExpect(status().isOk())
@@ -168,7 +400,7 @@ public class ServiceControllerTest {
     public void services_asyncChangesToMs1_interruptOnChange() throws Exception {
 
         Applications applications = mock2Applications();
-        Mockito.when(registry.getApplications()).thenReturn(applications);
+        mockApplications(applications);
 
         startThread(() -> {
             sleepFor(1000);
@@ -195,7 +427,7 @@ public class ServiceControllerTest {
     public void services_asyncChangesToMs1AndMs2_interruptOnChange() throws Exception {
 
         Applications applications = mock2Applications();
-        Mockito.when(registry.getApplications()).thenReturn(applications);
+        mockApplications(applications);
 
         startThread(() -> {
             sleepFor(1000);
@@ -204,7 +436,7 @@ public class ServiceControllerTest {
 
             Applications newApplications = new Applications();
             newApplications.addApplication(new Application("ms1"));
-            Mockito.when(registry.getApplications()).thenReturn(newApplications);
+            mockApplications(newApplications);
 
             serviceChangeDetector.publish("ms2", 4);
             sleepFor(1000);
@@ -234,7 +466,7 @@ public class ServiceControllerTest {
     public void service_sampleService_jsonObject() throws Exception {
 
         Applications applications = mock2Applications();
-        Mockito.when(registry.getApplications()).thenReturn(applications);
+        mockApplications(applications);
         Application ms1 = applications.getRegisteredApplications().get(0);
 
         InstanceInfo instance1 = mock1Instance();
@@ -265,6 +497,7 @@ public class ServiceControllerTest {
         Mockito.when(instance2.getMetadata()).thenReturn(md);
 
         ms1.addInstance(instance2);
+        serviceChangeDetector.publish("ms1", 2);
 
         performAsync("/v1/catalog/service/ms1?wait=1ms")
                 .andExpect(content().contentType("application/json;charset=UTF-8"))
@@ -294,7 +527,7 @@ public class ServiceControllerTest {
     public void service_sampleService_jsonObject_nodeMetadataMapper() throws Exception{
 
         Applications applications = mock2Applications();
-        Mockito.when(registry.getApplications()).thenReturn(applications);
+        mockApplications(applications);
         Application ms1 = applications.getRegisteredApplications().get(0);
 
         InstanceInfo instance = mock1Instance();
@@ -330,6 +563,7 @@ public class ServiceControllerTest {
         nodeMetaPrefix = "";
         metadataMapper = new NodeMetadataMapper(nodeMetaPrefix);
         instanceInfoMapper.setMetadataMapper(metadataMapper);
+        serviceChangeDetector.publish("ms1", 2);
 
         performAsync("/v1/catalog/service/ms1?wait=1ms")
             .andExpect(content().contentType("application/json;charset=UTF-8"))
@@ -351,7 +585,7 @@ public class ServiceControllerTest {
     public void service_sampleService_jsonObject_preferHostName() throws Exception {
 
         Applications applications = mock2Applications();
-        Mockito.when(registry.getApplications()).thenReturn(applications);
+        mockApplications(applications);
         Application ms1 = applications.getRegisteredApplications().get(0);
 
         InstanceInfo instance1 = mock1Instance();
@@ -377,7 +611,7 @@ public class ServiceControllerTest {
     public void service_healthEndpoint_jsonObject() throws Exception {
 
         Applications applications = mock2Applications();
-        Mockito.when(registry.getApplications()).thenReturn(applications);
+        mockApplications(applications);
         Application ms1 = applications.getRegisteredApplications().get(0);
 
         InstanceInfo instance1 = mock1Instance();
@@ -412,6 +646,7 @@ public class ServiceControllerTest {
         Mockito.when(instance2.getMetadata()).thenReturn(md);
 
         ms1.addInstance(instance2);
+        serviceChangeDetector.publish("ms1", 2);
 
         performAsync("/v1/health/service/ms1?wait=1ms")
                 .andExpect(content().contentType("application/json;charset=UTF-8"))
@@ -445,11 +680,254 @@ public class ServiceControllerTest {
                 .andExpect(jsonPath("$[1].Checks[0].Status", Matchers.is("UP")));
     }
 
+    @Test
+    public void service_unchangedIndex_snapshotReused() throws Exception {
+
+        Applications applications = mock2Applications();
+        mockApplications(applications);
+        Application ms1 = applications.getRegisteredApplications().get(0);
+
+        InstanceInfo instance1 = mock1Instance();
+        ms1.addInstance(instance1);
+
+        Mockito.when(registry.getApplication("ms1")).thenReturn(ms1);
+
+        performAsync("/v1/catalog/service/ms1?wait=1ms")
+                .andExpect(header().string("X-Consul-Index", "1"))
+                .andExpect(jsonPath("$[0].Address", Matchers.is("1.2.3.4")));
+
+        Mockito.when(instance1.getIPAddr()).thenReturn("8.8.8.8");
+        Mockito.when(instance1.getLastUpdatedTimestamp()).thenReturn(2L);
+
+        performAsync("/v1/catalog/service/ms1?wait=1ms")
+                .andExpect(header().string("X-Consul-Index", "1"))
+                .andExpect(jsonPath("$[0].Address", Matchers.is("1.2.3.4")));
+
+        serviceChangeDetector.publish("ms1", 2);
+
+        performAsync("/v1/catalog/service/ms1?wait=1ms")
+                .andExpect(header().string("X-Consul-Index", "2"))
+                .andExpect(jsonPath("$[0].Address", Matchers.is("8.8.8.8")));
+    }
+
+    @Test
+    public void service_unknownService_notCached() throws Exception {
+
+        mockApplications(mock2Applications());
+
+        performAsync("/v1/catalog/service/unknown?wait=1ms")
+                .andExpect(header().string("X-Consul-Index", "1"))
+                .andExpect(content().string("[]"));
+        performAsync("/v1/health/service/unknown?passing&wait=1ms")
+                .andExpect(header().string("X-Consul-Index", "1"))
+                .andExpect(content().string("[]"));
+
+        Assert.assertNull(serviceSnapshotCache.getSnapshot("catalog", "unknown", 1));
+        Assert.assertNull(serviceSnapshotCache.getSnapshot("health-passing", "unknown", 1));
+    }
+
+    @Test
+    public void service_healthEndpointAcceptsGzip_gzippedJson() throws Exception {
+
+        Applications applications = mock2Applications();
+        mockApplications(applications);
+        Application ms1 = applications.getRegisteredApplications().get(0);
+
+        InstanceInfo instance1 = mock1Instance();
+        ms1.addInstance(instance1);
+
+        Mockito.when(registry.getApplication("ms1")).thenReturn(ms1);
+
+        controller.setCompressResponses(true);
+        try {
+            MvcResult mvcResult = this.mockMvc.perform(get("/v1/health/service/ms1?wait=1ms")
+                                                               .header("Accept-Encoding", "gzip, deflate"))
+                                              .andExpect(status().isOk())
+                                              .andReturn();
+            byte[] gzipped = this.mockMvc.perform(asyncDispatch(mvcResult))
+                                         .andExpect(header().string("Content-Encoding", "gzip"))
+                                         .andExpect(header().string("X-Consul-Index", "1"))
+                                         .andReturn().getResponse().getContentAsByteArray();
+
+            try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped))) {
+                String json = StreamUtils.copyToString(in, StandardCharsets.UTF_8);
+                Assert.assertThat(JsonPath.read(json, "$[0].Service.ID"), Matchers.is("1"));
+                Assert.assertThat(JsonPath.read(json, "$[0].Checks[0].Status"), Matchers.is("UP"));
+            }
+
+            performAsync("/v1/health/service/ms1?wait=1ms")
+                    .andExpect(header().doesNotExist("Content-Encoding"))
+                    .andExpect(jsonPath("$[0].Service.ID", Matchers.is("1")));
+
+            for (String refused : new String[] { "gzip;q=0", "deflate, GZIP ; Q=0.000", "*;q=0", "identity" }) {
+                MvcResult refusedResult = this.mockMvc.perform(get("/v1/health/service/ms1?wait=1ms")
+                                                                       .header("Accept-Encoding", refused))
+                                                      .andReturn();
+                this.mockMvc.perform(asyncDispatch(refusedResult))
+                            .andExpect(header().doesNotExist("Content-Encoding"))
+                            .andExpect(jsonPath("$[0].Service.ID", Matchers.is("1")));
+            }
+            for (String accepted : new String[] { "gzip;q=0.5", "deflate;q=0, *", "x;q=0,gzip" }) {
+                MvcResult acceptedResult = this.mockMvc.perform(get("/v1/health/service/ms1?wait=1ms")
+                                                                        .header("Accept-Encoding", accepted))
+                                                       .andReturn();
+                this.mockMvc.perform(asyncDispatch(acceptedResult))
+                            .andExpect(header().string("Content-Encoding", "gzip"));
+            }
+        } finally {
+            controller.setCompressResponses(false);
+        }
+    }
+
+    @Test
+    public void service_nodeMetadataMapperWithRegexCharactersInPrefix_matchesPrefixLiterally() throws Exception {
+
+        Applications applications = mock2Applications();
+        mockApplications(applications);
+        Application ms1 = applications.getRegisteredApplications().get(0);
+
+        InstanceInfo instance = mock1Instance();
+        Map<String, String> md = new HashMap<>();
+        md.put("node.k1", "nv1");
+        md.put("nodeXk2", "v2");
+        md.put("node.", "v3");
+        Mockito.when(instance.getMetadata()).thenReturn(md);
+        ms1.addInstance(instance);
+        Mockito.when(registry.getApplication("ms1")).thenReturn(ms1);
+
+        instanceInfoMapper.setMetadataMapper(new NodeMetadataMapper("node."));
+        try {
+            performAsync("/v1/catalog/service/ms1?wait=1ms")
+                    .andExpect(jsonPath("$[0].NodeMeta.length()", Matchers.is(1)))
+                    .andExpect(jsonPath("$[0].NodeMeta.k1", Matchers.is("nv1")))
+                    .andExpect(jsonPath("$[0].ServiceMeta.length()", Matchers.is(2)))
+                    .andExpect(jsonPath("$[0].ServiceMeta.nodeXk2", Matchers.is("v2")))
+                    .andExpect(jsonPath("$[0].ServiceMeta['node.']", Matchers.is("v3")));
+        } finally {
+            instanceInfoMapper.setMetadataMapper(new ServiceMetadataMapper());
+        }
+    }
+
+    @Test
+    public void service_filterTagAndNodeMeta_returnMatchingInstancesOnly() throws Exception {
+
+        Applications applications = mock2Applications();
+        mockApplications(applications);
+        Application ms1 = applications.getRegisteredApplications().get(0);
+        ms1.addInstance(mockInstanceWithMetadata("1", "eu-1", "1.0"));
+        ms1.addInstance(mockInstanceWithMetadata("2", "eu-1", "2.0"));
+        ms1.addInstance(mockInstanceWithMetadata("3", "us-1", "2.0"));
+        Mockito.when(registry.getApplication("ms1")).thenReturn(ms1);
+
+        instanceInfoMapper.setMetadataMapper(new NodeMetadataMapper("node_"));
+        try {
+            performAsync("/v1/catalog/service/ms1?wait=1ms&node-meta=zone:eu-1")
+                    .andExpect(jsonPath("$[*].ServiceID", Matchers.contains("1", "2")));
+
+            performAsync("/v1/catalog/service/ms1?wait=1ms&node-meta=zone:eu-1&filter=ServiceID != 1")
+                    .andExpect(jsonPath("$[*].ServiceID", Matchers.contains("2")));
+
+            performAsync("/v1/health/service/ms1?wait=1ms"
+                    + "&filter=Service.Meta.version == \"2.0\" and not (Node.Meta.zone matches `^eu-`)")
+                    .andExpect(jsonPath("$[*].Service.ID", Matchers.contains("3")));
+
+            performAsync("/v1/health/service/ms1?wait=1ms&filter=\"zone\" in NodeMeta and ServiceTags is empty")
+                    .andExpect(jsonPath("$[*].Service.ID", Matchers.contains("1", "2", "3")));
+
+            performAsync("/v1/catalog/service/ms1?wait=1ms&tag=primary")
+                    .andExpect(content().string("[]"));
+
+            performAsync("/v1/catalog/service/ms1?wait=1ms")
+                    .andExpect(jsonPath("$[*].ServiceID", Matchers.contains("1", "2", "3")));
+        } finally {
+            instanceInfoMapper.setMetadataMapper(new ServiceMetadataMapper());
+        }
+    }
+
+    @Test
+    public void health_passing_returnsUpInstancesOnly() throws Exception {
+
+        Applications applications = mock2Applications();
+        mockApplications(applications);
+        Application ms1 = applications.getRegisteredApplications().get(0);
+        InstanceInfo instance1 = mock1Instance("1", "1.2.3.4", "ms1.com", 80, false);
+        InstanceInfo instance2 = mock1Instance("2", "1.2.3.5", "ms1.com", 80, false);
+        Mockito.when(instance2.getStatus()).thenReturn(InstanceInfo.InstanceStatus.DOWN);
+        ms1.addInstance(instance1);
+        ms1.addInstance(instance2);
+        Mockito.when(registry.getApplication("ms1")).thenReturn(ms1);
+
+        performAsync("/v1/health/service/ms1?wait=1ms&passing=")
+                .andExpect(jsonPath("$[*].Service.ID", Matchers.contains("1")));
+
+        performAsync("/v1/health/service/ms1?wait=1ms&passing=false")
+                .andExpect(jsonPath("$[*].Service.ID", Matchers.contains("1", "2")));
+
+        Mockito.when(instance1.getStatus()).thenReturn(InstanceInfo.InstanceStatus.OUT_OF_SERVICE);
+        Mockito.when(instance2.getStatus()).thenReturn(InstanceInfo.InstanceStatus.UP);
+        serviceChangeDetector.publish("ms1", 2);
+
+        performAsync("/v1/health/service/ms1?wait=1ms&passing=true")
+                .andExpect(header().string("X-Consul-Index", "2"))
+                .andExpect(jsonPath("$[*].Service.ID", Matchers.contains("2")));
+
+        performAsync("/v1/health/service/ms1?wait=1ms&passing=&filter=ServiceID == 1")
+                .andExpect(content().string("[]"));
+    }
+
+    @Test(timeout = 10000)
+    public void service_blockingQueries_areRecordedInMetrics() throws Exception {
+
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        Metrics.addRegistry(meterRegistry);
+        try {
+            Applications applications = mock2Applications();
+            mockApplications(applications);
+            Application ms1 = applications.getRegisteredApplications().get(0);
+            ms1.addInstance(mock1Instance());
+            Mockito.when(registry.getApplication("ms1")).thenReturn(ms1);
+
+            performAsync("/v1/catalog/service/ms1?wait=1ms&index=1")
+                    .andExpect(header().string("X-Consul-Index", "1"));
+
+            startThread(() -> {
+                sleepFor(500);
+                serviceChangeDetector.publish("ms1", 2);
+            });
+
+            performAsync("/v1/catalog/service/ms1?wait=30s&index=1")
+                    .andExpect(header().string("X-Consul-Index", "2"));
+
+            // neither waits, a stale index and no index return at once
+            performAsync("/v1/catalog/service/ms1?wait=30s&index=1")
+                    .andExpect(header().string("X-Consul-Index", "2"));
+            performAsync("/v1/catalog/service/ms1?wait=30s")
+                    .andExpect(header().string("X-Consul-Index", "2"));
+
+            Assert.assertEquals(1.0, meterRegistry.get("eureka.consul.adapter.wakeups")
+                    .tags("endpoint", "catalog", "outcome", "timeout").counter().count(), 0.0);
+            Assert.assertEquals(1.0, meterRegistry.get("eureka.consul.adapter.wakeups")
+                    .tags("endpoint", "catalog", "outcome", "change").counter().count(), 0.0);
+            Assert.assertEquals(2.0, meterRegistry.get("eureka.consul.adapter.wakeups")
+                    .tags("endpoint", "catalog", "outcome", "immediate").counter().count(), 0.0);
+            Assert.assertEquals(1L, meterRegistry.get("eureka.consul.adapter.wait")
+                    .tags("endpoint", "catalog", "outcome", "change").timer().count());
+            Assert.assertThat(meterRegistry.get("eureka.consul.adapter.wait")
+                    .tags("endpoint", "catalog", "outcome", "change").timer().totalTime(TimeUnit.MILLISECONDS),
+                    Matchers.is(Matchers.greaterThanOrEqualTo(400.0)));
+            Assert.assertEquals(0.0, meterRegistry.get("eureka.consul.adapter.waiters")
+                    .tags("endpoint", "catalog").gauge().value(), 0.0);
+            Assert.assertEquals(1L, meterRegistry.get("eureka.consul.adapter.change.propagation").timer().count());
+        } finally {
+            Metrics.removeRegistry(meterRegistry);
+        }
+    }
+
     @Test(timeout = 10000)
     public void service_serviceChangesToOtherServices_interruptOnCorrectService() throws Exception {
 
         Applications applications = mock2Applications();
-        Mockito.when(registry.getApplications()).thenReturn(applications);
+        mockApplications(applications);
         Application ms1 = applications.getRegisteredApplications().get(0);
 
         InstanceInfo instance1 = mock1Instance();
@@ -466,6 +944,7 @@ public class ServiceControllerTest {
             serviceChangeDetector.publish("ms4", 1);
             sleepFor(500);
             Mockito.when(instance1.getIPAddr()).thenReturn("8.8.8.8");
+            Mockito.when(instance1.getLastUpdatedTimestamp()).thenReturn(2L);
             serviceChangeDetector.publish("ms1", 3);
         });
 
@@ -494,7 +973,7 @@ public class ServiceControllerTest {
     public void service_eventInterruptsRequestError_isResolved() throws Exception {
 
         Applications applications = mock2Applications();
-        Mockito.when(registry.getApplications()).thenReturn(applications);
+        mockApplications(applications);
 
         Application ms1 = applications.getRegisteredApplications().get(0);
         InstanceInfo instance1 = mock1Instance();
@@ -537,6 +1016,12 @@ public class ServiceControllerTest {
         return applications;
     }
 
+    private void mockApplications(Applications applications) {
+        Map<String, String[]> serviceNames = new TreeMap<>();
+        applications.getRegisteredApplications().forEach(app -> serviceNames.put(app.getName(), new String[0]));
+        Mockito.when(registry.getServiceNames()).thenReturn(serviceNames);
+    }
+
     private void startThread(Runnable t) {
         executorService1.submit(t);
     }
@@ -558,6 +1043,15 @@ public class ServiceControllerTest {
         return instance1;
     }
 
+    private InstanceInfo mockInstanceWithMetadata(String id, String zone, String version) {
+        InstanceInfo instance = mock1Instance(id, "1.2.3." + id, "ms1.com", 80, false);
+        Map<String, String> md = new HashMap<>();
+        md.put("node_zone", zone);
+        md.put("version", version);
+        Mockito.when(instance.getMetadata()).thenReturn(md);
+        return instance;
+    }
+
     private void sleepFor(final int millis) {
         try {
             Thread.sleep(millis);
@@ -0,0 +1,95 @@
+/**
+ * The MIT License
+ * Copyright © 2018 Twinformatics GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package at.twinformatics.eureka.adapter.consul.controller;
+
+import org.hamcrest.Matchers;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class WaitJitterTest {
+
+    private static final int SAMPLES = 1000;
+
+    @Test
+    public void apply_none_unchanged() {
+
+        Assert.assertThat(WaitJitter.NONE.apply(30_000), Matchers.is(30_000L));
+        Assert.assertThat(WaitJitter.NONE.apply(Long.MAX_VALUE), Matchers.is(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void apply_uniform_addsUpToSixteenth() {
+
+        boolean jittered = false;
+        for (int i = 0; i < SAMPLES; i++) {
+            long waitMillis = WaitJitter.UNIFORM.apply(16_000);
+            Assert.assertThat(waitMillis, Matchers.allOf(Matchers.greaterThanOrEqualTo(16_000L),
+                    Matchers.lessThanOrEqualTo(17_000L)));
+            jittered |= waitMillis != 16_000;
+        }
+        Assert.assertTrue(jittered);
+    }
+
+    @Test
+    public void apply_fullJitter_upToWaitTime() {
+
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < SAMPLES; i++) {
+            long waitMillis = WaitJitter.FULL_JITTER.apply(16_000);
+            Assert.assertThat(waitMillis, Matchers.allOf(Matchers.greaterThanOrEqualTo(0L),
+                    Matchers.lessThanOrEqualTo(16_000L)));
+            min = Math.min(min, waitMillis);
+        }
+        Assert.assertThat(min, Matchers.lessThan(8_000L));
+    }
+
+    @Test
+    public void apply_extremeWaitTimes_noOverflow() {
+
+        for (WaitJitter waitJitter : WaitJitter.values()) {
+            for (int i = 0; i < SAMPLES; i++) {
+                Assert.assertThat(waitJitter.name(), waitJitter.apply(Long.MAX_VALUE),
+                        Matchers.greaterThanOrEqualTo(0L));
+                Assert.assertThat(waitJitter.name(), waitJitter.apply(Long.MAX_VALUE - 1),
+                        Matchers.greaterThanOrEqualTo(0L));
+            }
+            Assert.assertThat(waitJitter.name(), waitJitter.apply(0), Matchers.is(0L));
+            Assert.assertThat(waitJitter.name(), waitJitter.apply(-1), Matchers.is(-1L));
+        }
+    }
+
+    @Test
+    public void of_anyCaseAndDashes_parsed() {
+
+        Assert.assertThat(WaitJitter.of("none"), Matchers.is(WaitJitter.NONE));
+        Assert.assertThat(WaitJitter.of(" Uniform "), Matchers.is(WaitJitter.UNIFORM));
+        Assert.assertThat(WaitJitter.of("full-jitter"), Matchers.is(WaitJitter.FULL_JITTER));
+        Assert.assertThat(WaitJitter.of("FULL_JITTER"), Matchers.is(WaitJitter.FULL_JITTER));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void of_unknownName_rejected() {
+
+        WaitJitter.of("exponential");
+    }
+}
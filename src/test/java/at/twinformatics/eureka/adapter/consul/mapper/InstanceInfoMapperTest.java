@@ -0,0 +1,67 @@
+/**
+ * The MIT License
+ * Copyright © 2018 Twinformatics GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package at.twinformatics.eureka.adapter.consul.mapper;
+
+import at.twinformatics.eureka.adapter.consul.model.Service;
+import com.netflix.appinfo.InstanceInfo;
+import com.netflix.appinfo.InstanceInfo.InstanceStatus;
+import com.netflix.appinfo.MyDataCenterInfo;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class InstanceInfoMapperTest {
+
+    private InstanceInfoMapper instanceInfoMapper;
+
+    @Before
+    public void setUp() {
+        instanceInfoMapper = new InstanceInfoMapper(new ServiceMetadataMapper());
+    }
+
+    @Test
+    public void map_sameIdInOtherApp_mappingReused() {
+
+        // instances of different apps on one host share their host name as id
+        InstanceInfo ms1 = instance("MS1", "host1");
+        InstanceInfo ms2 = instance("MS2", "host1");
+
+        Service mappedMs1 = instanceInfoMapper.map(ms1);
+        Service mappedMs2 = instanceInfoMapper.map(ms2);
+
+        Assert.assertSame(mappedMs1, instanceInfoMapper.map(ms1));
+        Assert.assertSame(mappedMs2, instanceInfoMapper.map(ms2));
+    }
+
+    private static InstanceInfo instance(String appName, String hostName) {
+        return InstanceInfo.Builder.newBuilder()
+                .setAppName(appName)
+                .setInstanceId(hostName)
+                .setHostName(hostName)
+                .setIPAddr("1.2.3.4")
+                .setPort(80)
+                .setStatus(InstanceStatus.UP)
+                .setDataCenterInfo(new MyDataCenterInfo(MyDataCenterInfo.Name.MyOwn))
+                .build();
+    }
+}
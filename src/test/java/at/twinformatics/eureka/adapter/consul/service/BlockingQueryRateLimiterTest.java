@@ -0,0 +1,147 @@
+/**
+ * The MIT License
+ * Copyright © 2018 Twinformatics GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package at.twinformatics.eureka.adapter.consul.service;
+
+import org.hamcrest.Matchers;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class BlockingQueryRateLimiterTest {
+
+    private static final long INTERVAL_MILLIS = 1000;
+
+    // tasks scheduled on the timer by their delay, run by the tests instead of the timer
+    private final Map<Long, Runnable> scheduledTasks = new LinkedHashMap<>();
+    private long nanoTime;
+    private BlockingQueryRateLimiter blockingQueryRateLimiter;
+
+    @Before
+    public void setUp() {
+        ServiceChangeDetector serviceChangeDetector = Mockito.mock(ServiceChangeDetector.class);
+        Mockito.when(serviceChangeDetector.schedule(ArgumentMatchers.any(), ArgumentMatchers.anyLong()))
+               .then(invocation -> {
+                   scheduledTasks.put(invocation.getArgument(1), invocation.getArgument(0));
+                   return null;
+               });
+        blockingQueryRateLimiter = new BlockingQueryRateLimiter(serviceChangeDetector, () -> nanoTime);
+        blockingQueryRateLimiter.setMinReturnIntervalMillis(INTERVAL_MILLIS);
+    }
+
+    @Test
+    public void limit_burstOfReturns_heldBackByOneInterval() {
+
+        Assert.assertTrue(limit("ms1", 30_000).isDone());
+
+        advanceMillis(100);
+        CompletableFuture<?>[] burst = new CompletableFuture<?>[5];
+        for (int i = 0; i < burst.length; i++) {
+            burst[i] = limit("ms1", 30_000);
+        }
+
+        // returns held back at the same time do not queue an interval each
+        Assert.assertThat(scheduledTasks.keySet(), Matchers.contains(INTERVAL_MILLIS - 100));
+        Assert.assertFalse(CompletableFuture.anyOf(burst).isDone());
+
+        advanceMillis(INTERVAL_MILLIS - 100);
+        runScheduledTask(INTERVAL_MILLIS - 100);
+        Assert.assertTrue(CompletableFuture.allOf(burst).isDone());
+
+        Assert.assertFalse(limit("ms1", 30_000).isDone());
+        Assert.assertThat(scheduledTasks.keySet(), Matchers.contains(INTERVAL_MILLIS));
+    }
+
+    @Test
+    public void limit_batchReleasedBeforeItsTime_notJoined() {
+
+        limit("ms1", 30_000);
+        advanceMillis(100);
+        CompletableFuture<Long> heldBack = limit("ms1", 30_000);
+
+        // the timer released the batch slightly before it was due
+        nanoTime += TimeUnit.MILLISECONDS.toNanos(INTERVAL_MILLIS - 100) - 1;
+        runScheduledTask(INTERVAL_MILLIS - 100);
+        Assert.assertTrue(heldBack.isDone());
+
+        // held back for the interval after the time the batch was due
+        Assert.assertFalse(limit("ms1", 30_000).isDone());
+        Assert.assertThat(scheduledTasks.keySet(), Matchers.contains(INTERVAL_MILLIS + 1));
+    }
+
+    @Test
+    public void limit_delayWithinMillisecond_roundedUp() {
+
+        limit("ms1", 30_000);
+        nanoTime += TimeUnit.MILLISECONDS.toNanos(INTERVAL_MILLIS) - 1;
+
+        Assert.assertFalse(limit("ms1", 30_000).isDone());
+        Assert.assertThat(scheduledTasks.keySet(), Matchers.contains(1L));
+    }
+
+    @Test
+    public void limit_intervalBeyondWaitTime_heldBackUntilWaitTime() {
+
+        limit("ms1", 30_000);
+        advanceMillis(100);
+        CompletableFuture<Long> heldBack = limit("ms1", 200);
+
+        Assert.assertThat(scheduledTasks.keySet(), Matchers.containsInAnyOrder(INTERVAL_MILLIS - 100, 200L));
+
+        advanceMillis(200);
+        runScheduledTask(200);
+        Assert.assertTrue(heldBack.isDone());
+    }
+
+    @Test
+    public void limit_otherClientOrNoIndex_notHeldBack() {
+
+        limit("ms1", 30_000);
+
+        Assert.assertTrue(blockingQueryRateLimiter.limit("client2", "ms1", 1L, 30_000,
+                CompletableFuture.completedFuture(1L)).isDone());
+        Assert.assertTrue(blockingQueryRateLimiter.limit("client1", "ms1", null, 30_000,
+                CompletableFuture.completedFuture(1L)).isDone());
+        Assert.assertTrue(limit("ms2", 30_000).isDone());
+        Assert.assertThat(scheduledTasks.keySet(), Matchers.empty());
+    }
+
+    private CompletableFuture<Long> limit(String serviceName, long waitMillis) {
+        return blockingQueryRateLimiter.limit("client1", serviceName, 1L, waitMillis,
+                CompletableFuture.completedFuture(1L));
+    }
+
+    private void advanceMillis(long millis) {
+        nanoTime += TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    private void runScheduledTask(long delayMillis) {
+        scheduledTasks.remove(delayMillis).run();
+    }
+}
@@ -0,0 +1,134 @@
+/**
+ * The MIT License
+ * Copyright © 2018 Twinformatics GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package at.twinformatics.eureka.adapter.consul.service;
+
+import org.hamcrest.Matchers;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * With a tick of one millisecond, the wheel of 512 buckets wraps after 512 milliseconds
+ */
+public class BlockingQueryTimerTest {
+
+    private static final long WHEEL_MILLIS = 512;
+    // expiry may be late by a tick plus scheduling delays of a busy build machine, but never early
+    private static final long MAX_LATENESS_MILLIS = 250;
+
+    private BlockingQueryTimer timer;
+
+    @Before
+    public void setUp() {
+        timer = new BlockingQueryTimer(1);
+    }
+
+    @After
+    public void tearDown() {
+        timer.stop();
+    }
+
+    @Test(timeout = 10000)
+    public void schedule_delaysAroundWheelWrap_expireOnTime() throws Exception {
+
+        long[] delays = { 1, WHEEL_MILLIS - 1, WHEEL_MILLIS, WHEEL_MILLIS + 1, 2 * WHEEL_MILLIS,
+                          2 * WHEEL_MILLIS + 1 };
+        CountDownLatch latch = new CountDownLatch(delays.length);
+        AtomicLong[] elapsed = new AtomicLong[delays.length];
+        long start = System.nanoTime();
+        for (int i = 0; i < delays.length; i++) {
+            AtomicLong expiry = elapsed[i] = new AtomicLong();
+            timer.schedule(() -> {
+                expiry.set(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                latch.countDown();
+            }, delays[i]);
+        }
+
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < delays.length; i++) {
+            Assert.assertThat("delay " + delays[i], elapsed[i].get(), Matchers.allOf(
+                    Matchers.greaterThanOrEqualTo(delays[i]),
+                    Matchers.lessThan(delays[i] + MAX_LATENESS_MILLIS)));
+        }
+        Assert.assertThat(timer.getExpired(), Matchers.is((long) delays.length));
+        Assert.assertThat(timer.getPending(), Matchers.is(0L));
+    }
+
+    @Test(timeout = 10000)
+    public void schedule_multipleRounds_notExpiredEarlier() throws Exception {
+
+        long delay = 3 * WHEEL_MILLIS + WHEEL_MILLIS / 2;
+        CountDownLatch latch = new CountDownLatch(1);
+        long start = System.nanoTime();
+        timer.schedule(latch::countDown, delay);
+
+        // the bucket of the timeout is passed three times before it expires
+        Assert.assertFalse(latch.await(delay - WHEEL_MILLIS / 4, TimeUnit.MILLISECONDS));
+        Assert.assertThat(timer.getPending(), Matchers.is(1L));
+
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Assert.assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                Matchers.is(Matchers.greaterThanOrEqualTo(delay)));
+        Assert.assertThat(timer.getExpired(), Matchers.is(1L));
+    }
+
+    @Test(timeout = 10000)
+    public void cancel_beforeExpiry_neverRuns() throws Exception {
+
+        AtomicBoolean expired = new AtomicBoolean();
+        BlockingQueryTimer.Timeout beforeTransfer = timer.schedule(() -> expired.set(true), 50);
+        beforeTransfer.cancel();
+        BlockingQueryTimer.Timeout inWheel = timer.schedule(() -> expired.set(true), WHEEL_MILLIS + 50);
+        Thread.sleep(WHEEL_MILLIS / 2);
+        // cancelled while its bucket is passed for the first time
+        inWheel.cancel();
+        inWheel.cancel();
+
+        Thread.sleep(WHEEL_MILLIS + 100);
+
+        Assert.assertFalse(expired.get());
+        Assert.assertThat(timer.getCancelled(), Matchers.is(2L));
+        Assert.assertThat(timer.getExpired(), Matchers.is(0L));
+        Assert.assertThat(timer.getPending(), Matchers.is(0L));
+    }
+
+    @Test(timeout = 10000)
+    public void cancel_afterExpiry_notCounted() throws Exception {
+
+        CountDownLatch latch = new CountDownLatch(1);
+        BlockingQueryTimer.Timeout timeout = timer.schedule(latch::countDown, 10);
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+        timeout.cancel();
+
+        Assert.assertThat(timer.getExpired(), Matchers.is(1L));
+        Assert.assertThat(timer.getCancelled(), Matchers.is(0L));
+        Assert.assertThat(timer.getScheduled(), Matchers.is(1L));
+    }
+}
@@ -0,0 +1,206 @@
+/**
+ * The MIT License
+ * Copyright © 2018 Twinformatics GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package at.twinformatics.eureka.adapter.consul.service;
+
+import com.netflix.appinfo.ApplicationInfoManager;
+import com.netflix.appinfo.EurekaInstanceConfig;
+import com.netflix.appinfo.InstanceInfo;
+import com.netflix.appinfo.InstanceInfo.InstanceStatus;
+import com.netflix.appinfo.MyDataCenterInfo;
+import com.netflix.discovery.DefaultEurekaClientConfig;
+import com.netflix.discovery.EurekaClient;
+import com.netflix.eureka.DefaultEurekaServerConfig;
+import org.hamcrest.Matchers;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.springframework.context.ApplicationContext;
+
+/**
+ * Drives the registry as Eureka does, changes are replicated to skip the replication to peers
+ */
+public class RegistrationEventInstanceRegistryTest {
+
+    private ServiceChangeDetector serviceChangeDetector;
+    private RegistrationEventInstanceRegistry registry;
+
+    @BeforeClass
+    public static void setUpClass() {
+        // the monitors of the registry read the info of the Eureka server itself
+        new ApplicationInfoManager(Mockito.mock(EurekaInstanceConfig.class),
+                instance("EUREKA", "localhost", "127.0.0.1", 1));
+    }
+
+    @Before
+    public void setUp() {
+        serviceChangeDetector = Mockito.mock(ServiceChangeDetector.class);
+        // without self preservation, expired leases are evicted regardless of the renewal rate
+        DefaultEurekaServerConfig serverConfig = new DefaultEurekaServerConfig() {
+            @Override
+            public boolean shouldEnableSelfPreservation() {
+                return false;
+            }
+        };
+        registry = new RegistrationEventInstanceRegistry(serverConfig,
+                new DefaultEurekaClientConfig(), null, Mockito.mock(EurekaClient.class), 1, 1,
+                serviceChangeDetector);
+        registry.setApplicationContext(Mockito.mock(ApplicationContext.class));
+        registry.initializedResponseCache();
+    }
+
+    @Test
+    public void register_newInstance_publishedAndListed() {
+
+        registry.register(instance("MS1", "host1", "1.2.3.4", 1), true);
+
+        Mockito.verify(serviceChangeDetector).publish("MS1");
+        Assert.assertThat(registry.getServiceNames().keySet(), Matchers.contains("MS1"));
+    }
+
+    @Test
+    public void register_sameIdAgain_publishedOnlyIfChanged() {
+
+        registry.register(instance("MS1", "host1", "1.2.3.4", 1), true);
+        registry.register(instance("MS1", "host1", "1.2.3.4", 2), true);
+
+        Mockito.verify(serviceChangeDetector).publish("MS1");
+
+        registry.register(instance("MS1", "host1", "8.8.8.8", 3), true);
+
+        Mockito.verify(serviceChangeDetector, Mockito.times(2)).publish("MS1");
+        Assert.assertThat(registry.getServiceNames().keySet(), Matchers.contains("MS1"));
+        Assert.assertThat(registry.getApplication("MS1").getInstances(), Matchers.hasSize(1));
+    }
+
+    @Test
+    public void cancel_lastInstance_publishedAndRemoved() {
+
+        registry.register(instance("MS1", "host1", "1.2.3.4", 1), true);
+        registry.register(instance("MS1", "host2", "1.2.3.5", 1), true);
+
+        registry.cancel("MS1", "host1", true);
+
+        Mockito.verify(serviceChangeDetector, Mockito.times(3)).publish("MS1");
+        Assert.assertThat(registry.getServiceNames().keySet(), Matchers.contains("MS1"));
+
+        registry.cancel("MS1", "host2", true);
+
+        Mockito.verify(serviceChangeDetector, Mockito.times(4)).publish("MS1");
+        Assert.assertThat(registry.getServiceNames().keySet(), Matchers.empty());
+    }
+
+    @Test
+    public void register_sameIdInOtherApp_bothAppsKept() {
+
+        registry.register(instance("MS1", "host1", "1.2.3.4", 1), true);
+        registry.register(instance("MS2", "host1", "1.2.3.4", 1), true);
+
+        Mockito.verify(serviceChangeDetector).publish("MS1");
+        Mockito.verify(serviceChangeDetector).publish("MS2");
+        Assert.assertThat(registry.getServiceNames().keySet(), Matchers.contains("MS1", "MS2"));
+
+        registry.cancel("MS2", "host1", true);
+
+        Mockito.verify(serviceChangeDetector).publish("MS1");
+        Mockito.verify(serviceChangeDetector, Mockito.times(2)).publish("MS2");
+        Assert.assertThat(registry.getServiceNames().keySet(), Matchers.contains("MS1"));
+        Assert.assertThat(registry.getApplication("MS1").getInstances(), Matchers.hasSize(1));
+    }
+
+    @Test
+    public void statusUpdate_overriddenStatus_publishedOnce() {
+
+        registry.register(instance("MS1", "host1", "1.2.3.4", 1), true);
+
+        registry.statusUpdate("MS1", "host1", InstanceStatus.OUT_OF_SERVICE, null, true);
+
+        Mockito.verify(serviceChangeDetector, Mockito.times(2)).publish("MS1");
+        Assert.assertThat(registry.getInstanceByAppAndId("MS1", "host1").getStatus(),
+                Matchers.is(InstanceStatus.OUT_OF_SERVICE));
+    }
+
+    @Test
+    public void deleteStatusOverride_statusRestored_publishedOnce() {
+
+        registry.register(instance("MS1", "host1", "1.2.3.4", 1), true);
+        registry.statusUpdate("MS1", "host1", InstanceStatus.OUT_OF_SERVICE, null, true);
+
+        registry.deleteStatusOverride("MS1", "host1", InstanceStatus.UP, null, true);
+
+        Mockito.verify(serviceChangeDetector, Mockito.times(3)).publish("MS1");
+        Assert.assertThat(registry.getInstanceByAppAndId("MS1", "host1").getStatus(), Matchers.is(InstanceStatus.UP));
+    }
+
+    @Test
+    public void renew_unchangedStatus_notPublished() {
+
+        registry.register(instance("MS1", "host1", "1.2.3.4", 1), true);
+
+        Assert.assertTrue(registry.renew("MS1", "host1", true));
+        Assert.assertTrue(registry.renew("MS1", "host1", true));
+
+        Mockito.verify(serviceChangeDetector).publish("MS1");
+    }
+
+    @Test
+    public void renew_overriddenStatusApplied_publishedOnce() {
+
+        registry.register(instance("MS1", "host1", "1.2.3.4", 1), true);
+        // e.g. replicated from a peer, the override is only applied to the instance by its next renewal
+        registry.storeOverriddenStatusIfRequired("MS1", "host1", InstanceStatus.OUT_OF_SERVICE);
+
+        Assert.assertTrue(registry.renew("MS1", "host1", true));
+        Assert.assertTrue(registry.renew("MS1", "host1", true));
+
+        Mockito.verify(serviceChangeDetector, Mockito.times(2)).publish("MS1");
+        Assert.assertThat(registry.getInstanceByAppAndId("MS1", "host1").getStatus(),
+                Matchers.is(InstanceStatus.OUT_OF_SERVICE));
+    }
+
+    @Test
+    public void evict_expiredLease_publishedOnce() throws InterruptedException {
+
+        registry.register(instance("MS1", "host1", "1.2.3.4", 1), 0, true);
+        Thread.sleep(10);
+
+        registry.evict();
+
+        Mockito.verify(serviceChangeDetector, Mockito.times(2)).publish("MS1");
+        Assert.assertThat(registry.getServiceNames().keySet(), Matchers.empty());
+    }
+
+    private static InstanceInfo instance(String appName, String hostName, String ipAddr, long lastDirtyTimestamp) {
+        return InstanceInfo.Builder.newBuilder()
+                .setAppName(appName)
+                .setInstanceId(hostName)
+                .setHostName(hostName)
+                .setIPAddr(ipAddr)
+                .setPort(80)
+                .setStatus(InstanceStatus.UP)
+                .setDataCenterInfo(new MyDataCenterInfo(MyDataCenterInfo.Name.MyOwn))
+                .setLastDirtyTimestamp(lastDirtyTimestamp)
+                .build();
+    }
+}
@@ -0,0 +1,256 @@
+/**
+ * The MIT License
+ * Copyright © 2018 Twinformatics GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package at.twinformatics.eureka.adapter.consul.service;
+
+import at.twinformatics.eureka.adapter.consul.model.ChangeItem;
+import org.hamcrest.Matcher;
+import org.hamcrest.Matchers;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class ServiceChangeDetectorTest {
+
+    private ServiceChangeDetector serviceChangeDetector;
+
+    @Before
+    public void setUp() {
+        serviceChangeDetector = new ServiceChangeDetector();
+    }
+
+    @After
+    public void tearDown() {
+        serviceChangeDetector.shutdown();
+    }
+
+    @Test
+    public void getLastEmitted_restarted_aheadOfPreviousIndexes() {
+
+        long previousIndex = serviceChangeDetector.getLastEmitted();
+        for (int i = 0; i < 100; i++) {
+            serviceChangeDetector.publish("ms1");
+        }
+        previousIndex = Math.max(previousIndex, serviceChangeDetector.getLastEmitted());
+        sleepFor(200);
+
+        ServiceChangeDetector restarted = new ServiceChangeDetector();
+        try {
+            Assert.assertThat(restarted.getLastEmitted(), Matchers.is(Matchers.greaterThan(previousIndex)));
+            Assert.assertThat(restarted.getLastEmittedOfApp("ms1"), Matchers.is(restarted.getLastEmitted()));
+        } finally {
+            restarted.shutdown();
+        }
+    }
+
+    @Test(timeout = 3000)
+    public void getIndexOfApp_queryReturned_appNotKept() throws Exception {
+
+        long index = serviceChangeDetector.getLastEmittedOfApp("unknown");
+        CompletableFuture<Long> changed = serviceChangeDetector.getIndexOfApp("ms1", index, 10_000);
+        CompletableFuture<Long> timedOut = serviceChangeDetector.getIndexOfApp("unknown", index, 1);
+
+        Assert.assertThat(timedOut.get(2, TimeUnit.SECONDS), Matchers.is(index));
+        // waiters are removed by a callback of the returned query, which may run after get returned
+        awaitWaitedApps(Matchers.contains("ms1"));
+
+        serviceChangeDetector.publish("ms1");
+
+        Assert.assertThat(changed.get(2, TimeUnit.SECONDS), Matchers.is(Matchers.greaterThan(index)));
+        awaitWaitedApps(Matchers.empty());
+    }
+
+    @Test(timeout = 3000)
+    public void getIndexOfApp_timedOut_completedOffTheTimerThread() throws Exception {
+
+        long index = serviceChangeDetector.getLastEmittedOfApp("ms1");
+        CompletableFuture<String> completingThread = serviceChangeDetector.getIndexOfApp("ms1", index, 200)
+                .thenApply(changeIndex -> Thread.currentThread().getName());
+
+        Assert.assertThat(completingThread.get(2, TimeUnit.SECONDS),
+                Matchers.is("eureka-consul-adapter-completion"));
+    }
+
+    @Test(timeout = 3000)
+    public void getIndexOfApp_virtualThreadReturned_appNotKept() throws Exception {
+
+        Assume.assumeTrue("virtual threads require Java 21 or later", isVirtualThreadsSupported());
+        serviceChangeDetector.setVirtualThreads(true);
+
+        long index = serviceChangeDetector.getLastEmittedOfApp("ms1");
+        CompletableFuture<Long> changed = serviceChangeDetector.getIndexOfApp("ms1", index, 10_000);
+        while (serviceChangeDetector.getParkedThreads() == 0) {
+            Thread.yield();
+        }
+        Assert.assertThat(serviceChangeDetector.getWaitedApps(), Matchers.contains("ms1"));
+
+        serviceChangeDetector.publish("ms1");
+
+        Assert.assertThat(changed.get(2, TimeUnit.SECONDS), Matchers.is(Matchers.greaterThan(index)));
+        awaitWaitedApps(Matchers.empty());
+    }
+
+    @Test(timeout = 3000)
+    public void getIndexOfApp_parkedThreadSignalled_wokenUp() throws Exception {
+
+        serviceChangeDetector.setParkingExecutor(Executors.newCachedThreadPool());
+
+        long index = serviceChangeDetector.getLastEmittedOfApp("ms1");
+        CompletableFuture<Long> changed = serviceChangeDetector.getIndexOfApp("ms1", index, 10_000);
+        CompletableFuture<Long> changedAny = serviceChangeDetector.getTotalIndex(index, 10_000);
+        awaitParkedThreads(2);
+
+        // a change of another app only wakes up the catalog-wide query
+        serviceChangeDetector.publish("ms2");
+        Assert.assertThat(changedAny.get(2, TimeUnit.SECONDS), Matchers.is(Matchers.greaterThan(index)));
+        Assert.assertFalse(changed.isDone());
+
+        serviceChangeDetector.publish("ms1");
+        Assert.assertThat(changed.get(2, TimeUnit.SECONDS), Matchers.is(Matchers.greaterThan(index)));
+        awaitWaitedApps(Matchers.empty());
+        Assert.assertThat(serviceChangeDetector.getParkedThreads(), Matchers.is(0));
+    }
+
+    @Test(timeout = 3000)
+    public void getIndexOfApp_parkedThreadTimedOut_indexUnchanged() throws Exception {
+
+        serviceChangeDetector.setParkingExecutor(Executors.newCachedThreadPool());
+
+        long index = serviceChangeDetector.getLastEmittedOfApp("ms1");
+        CompletableFuture<Long> timedOut = serviceChangeDetector.getIndexOfApp("ms1", index, 100);
+
+        Assert.assertThat(timedOut.get(2, TimeUnit.SECONDS), Matchers.is(index));
+        awaitWaitedApps(Matchers.empty());
+    }
+
+    @Test(timeout = 3000)
+    public void getIndexOfApp_parkedQueryCancelled_threadReleased() {
+
+        serviceChangeDetector.setParkingExecutor(Executors.newCachedThreadPool());
+
+        long index = serviceChangeDetector.getLastEmittedOfApp("ms1");
+        CompletableFuture<Long> cancelled = serviceChangeDetector.getIndexOfApp("ms1", index, 10_000);
+        awaitParkedThreads(1);
+
+        cancelled.cancel(false);
+
+        awaitParkedThreads(0);
+        awaitWaitedApps(Matchers.empty());
+    }
+
+    @Test(timeout = 3000)
+    public void getIndexOfApp_changedBeforeParking_returnsAtOnce() throws Exception {
+
+        serviceChangeDetector.setParkingExecutor(Executors.newCachedThreadPool());
+
+        long index = serviceChangeDetector.getLastEmittedOfApp("ms1");
+        serviceChangeDetector.publish("ms1");
+
+        Assert.assertThat(serviceChangeDetector.getIndexOfApp("ms1", index, 10_000).get(2, TimeUnit.SECONDS),
+                Matchers.is(Matchers.greaterThan(index)));
+    }
+
+    @Test(timeout = 30000)
+    public void getChangedSince_concurrentPublishes_noChangeMissed() throws Exception {
+
+        int publishers = 4;
+        int changesPerPublisher = 500;
+        ExecutorService executorService = Executors.newFixedThreadPool(publishers);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> published = new ArrayList<>();
+            for (int p = 0; p < publishers; p++) {
+                String publisher = "ms" + p + '-';
+                published.add(executorService.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < changesPerPublisher; i++) {
+                        serviceChangeDetector.publish(publisher + i);
+                    }
+                    return null;
+                }));
+            }
+
+            // follows the changes like a client of /v1/adapter/changes, moving its index to the returned one
+            Set<String> seen = new HashSet<>();
+            long index = serviceChangeDetector.getLastEmitted();
+            start.countDown();
+            boolean publishing = true;
+            while (publishing) {
+                publishing = published.stream().anyMatch(future -> !future.isDone());
+                ChangeItem<Set<String>> changed = serviceChangeDetector.getChangedSince(index);
+                Assert.assertNotNull(changed.getItem());
+                seen.addAll(changed.getItem());
+                index = changed.getChangeIndex();
+            }
+            for (Future<?> future : published) {
+                future.get();
+            }
+
+            Assert.assertThat(seen, Matchers.hasSize(publishers * changesPerPublisher));
+            Assert.assertThat(index, Matchers.is(serviceChangeDetector.getLastEmitted()));
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    private static boolean isVirtualThreadsSupported() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    private void awaitParkedThreads(int parkedThreads) {
+        while (serviceChangeDetector.getParkedThreads() != parkedThreads) {
+            sleepFor(10);
+        }
+    }
+
+    private void awaitWaitedApps(Matcher<? super Set<String>> matcher) {
+        while (!matcher.matches(serviceChangeDetector.getWaitedApps())) {
+            sleepFor(10);
+        }
+    }
+
+    private void sleepFor(final int millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Assert.fail();
+        }
+    }
+}